@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import hudson.init.Terminator;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The AWS clients shared by all the builds using the same service, credentials, region and proxy, so that concurrent
+// and consecutive builds reuse the same connection pool, with its open connections and TLS sessions, instead of
+// creating clients that are never shut down.
+// A client is evicted and shut down once it has no request in progress and hasn't been handed out or finished a request
+// for IDLE_TIMEOUT, which is much longer than the time between two polls of a running build, so that a long upload or
+// download isn't cut short. A request only counts until its response arrives, so uses that go on after it, such as
+// reading an S3 object, lease the client for their duration. Every client is shut down when Jenkins stops.
+public class AWSClientCache {
+
+    static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Map<String, CachedClient> clients = new HashMap<>();
+
+    public interface ClientBuilder<T extends AmazonWebServiceClient> {
+        T build();
+    }
+
+    // Returns the client cached under the given key, or the one built by the given builder if there is none.
+    // @param key: identifies the service, credentials, region and proxy of the client. It may hold access key ids.
+    @SuppressWarnings("unchecked")
+    public static synchronized <T extends AmazonWebServiceClient> T getClient(String key, ClientBuilder<T> builder) {
+        long now = System.currentTimeMillis();
+        evictIdleClients(now);
+
+        CachedClient cached = clients.get(key);
+        if(cached == null) {
+            cached = new CachedClient(builder.build());
+            clients.put(key, cached);
+        }
+        cached.lastUsed = now;
+        return (T) cached.client;
+    }
+
+    // Keeps the given client from being evicted until it is released. Clients that aren't cached are ignored.
+    public static synchronized void lease(AmazonWebServiceClient client) {
+        CachedClient cached = find(client);
+        if(cached != null) {
+            cached.leases++;
+        }
+    }
+
+    public static synchronized void release(AmazonWebServiceClient client) {
+        CachedClient cached = find(client);
+        if(cached != null && cached.leases > 0) {
+            cached.leases--;
+            cached.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static CachedClient find(AmazonWebServiceClient client) {
+        for(CachedClient cached: clients.values()) {
+            if(cached.client == client) {
+                return cached;
+            }
+        }
+        return null;
+    }
+
+    @Terminator
+    public static synchronized void shutdownAll() {
+        for(CachedClient cached: clients.values()) {
+            cached.client.shutdown();
+        }
+        clients.clear();
+    }
+
+    static synchronized int size() {
+        return clients.size();
+    }
+
+    static synchronized void evictIdleClients(long now) {
+        Iterator<CachedClient> it = clients.values().iterator();
+        while(it.hasNext()) {
+            CachedClient cached = it.next();
+            if(cached.leases == 0 && cached.inFlight.get() == 0 && now - cached.lastUsed > IDLE_TIMEOUT) {
+                it.remove();
+                cached.client.shutdown();
+            }
+        }
+    }
+
+    private static class CachedClient extends RequestHandler2 {
+        private final AmazonWebServiceClient client;
+        private volatile long lastUsed;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // Guarded by AWSClientCache.class.
+        private int leases;
+
+        CachedClient(AmazonWebServiceClient client) {
+            this.client = client;
+            // Builds keep the clients they were given, so requests count as uses too.
+            client.addRequestHandler(this);
+        }
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            inFlight.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            requestFinished();
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            requestFinished();
+        }
+
+        private void requestFinished() {
+            lastUsed = System.currentTimeMillis();
+            inFlight.decrementAndGet();
+        }
+    }
+}
@@ -34,10 +34,13 @@
  */
 
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.retry.PredefinedBackoffStrategies;
 import com.amazonaws.retry.RetryPolicy;
@@ -46,22 +49,21 @@ import com.amazonaws.services.codebuild.AWSCodeBuildClient;
 import com.amazonaws.services.codebuild.model.InvalidInputException;
 import com.amazonaws.services.logs.AWSLogsClient;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.common.collect.MapMaker;
 import enums.CredentialsType;
 import hudson.EnvVars;
-import hudson.model.Item;
 import hudson.model.Run;
 import hudson.util.Secret;
-import jenkins.model.Jenkins;
 import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.amazonaws.auth.profile.internal.ProfileKeyConstants.*;
 import static com.amazonaws.codebuild.jenkinsplugin.Validation.*;
@@ -82,11 +84,24 @@ public class AWSClientFactory {
     private static final int CLIENT_CONFIG_MAX_CONNECTIONS = 100;
     private static final int RETRY_BACKOFF_BASE_DELAY = 10000;
     private static final int RETRY_BACKOFF_MAX_DELAY = 30000;
+    // How long assumed-role credentials sent to an agent must stay valid: the agent can't refresh them.
+    private static final long AGENT_CREDENTIALS_MIN_VALIDITY = 30 * 60 * 1000L;
 
     private String credentialsDescriptor;
+    private String credentialsIdentity;
     private AWSCredentialsProvider awsCredentialsProvider;
-    private final Properties properties;
+    // Whether the credentials were configured for the job, rather than being the controller's own (default chain).
+    private boolean jobCredentials;
     private static final String POM_PROPERTIES = "/META-INF/maven/com.amazonaws/aws-codebuild/pom.properties";
+    // Read once: neither the plugin version nor the retry policy change while Jenkins runs, and RetryPolicy is immutable.
+    private static final String USER_AGENT_PREFIX = "CodeBuild-Jenkins-Plugin" + readProjectVersion();
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(new CodeBuildClientRetryCondition(),
+            new PredefinedBackoffStrategies.ExponentialBackoffStrategy(RETRY_BACKOFF_BASE_DELAY, RETRY_BACKOFF_MAX_DELAY),
+            CLIENT_CONFIG_MAX_ERROR_RETRIES, true);
+    private static final ConcurrentMap<String, ClientConfiguration> clientConfigurationTemplates = new ConcurrentHashMap<>();
+    // Jenkins credentials instance -> random id telling it apart from the others. The keys are compared by identity,
+    // since credentials replaced by an edit are equal to the new ones, and are dropped with the credentials.
+    private static final ConcurrentMap<AWSCredentialsProvider, String> credentialsInstanceIds = new MapMaker().weakKeys().makeMap();
 
     public AWSClientFactory(String credentialsType, String credentialsId, String proxyHost, String proxyPort, String awsAccessKey, Secret awsSecretKey, String awsSessionToken,
                        String region, Run<?, ?> build, StepContext stepContext) {
@@ -95,7 +110,6 @@ public class AWSClientFactory {
         this.awsSecretKey = awsSecretKey;
         this.awsSessionToken = sanitize(awsSessionToken);
         this.region = sanitize(region);
-        this.properties = new Properties();
 
         CodeBuilderValidation.checkAWSClientFactoryRegionConfig(this.region);
         this.credentialsDescriptor = "";
@@ -105,21 +119,20 @@ public class AWSClientFactory {
             CodeBuilderValidation.checkAWSClientFactoryJenkinsCredentialsConfig(credentialsId);
             com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials codeBuildCredentials;
 
-            codeBuildCredentials = (CodeBuildBaseCredentials) CredentialsMatchers.firstOrNull(SystemCredentialsProvider.getInstance().getCredentials(),
-                    CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId)));
+            codeBuildCredentials = CredentialsIndex.getSystemCredentials(credentialsId);
+            // Where the credentials were found: folders can define credentials with the same id for other accounts.
+            String credentialsScope = "system";
 
             if(codeBuildCredentials == null) {
-                Item folder;
-                Jenkins instance = Jenkins.getInstance();
-                if(instance != null) {
-                    folder = instance.getItemByFullName(build.getParent().getParent().getFullName());
-                    codeBuildCredentials = (CodeBuildBaseCredentials) CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(Credentials.class, folder),
-                            CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId)));
-                }
+                credentialsScope = build.getParent().getParent().getFullName();
+                codeBuildCredentials = CredentialsIndex.getFolderCredentials(credentialsScope, credentialsId);
             }
 
             if(codeBuildCredentials != null) {
                 this.awsCredentialsProvider = codeBuildCredentials;
+                this.credentialsIdentity = "jenkins:" + credentialsScope + "/" + credentialsId + ":"
+                        + codeBuildCredentials.getAccessKey() + ":" + codeBuildCredentials.getIamRoleArn();
+                this.jobCredentials = !CodeBuildBaseCredentials.DEFAULT_CHAIN_CREDS.equals(codeBuildCredentials.getCredentialsDescriptor());
                 this.proxyHost = codeBuildCredentials.getProxyHost();
                 this.proxyPort = parseInt(codeBuildCredentials.getProxyPort());
                 this.credentialsDescriptor = codeBuildCredentials.getCredentialsDescriptor() + " (provided from Jenkins credentials " + credentialsId + ")";
@@ -140,7 +153,9 @@ public class AWSClientFactory {
 
             if(awsCredentialsProvider == null) {
                 awsCredentialsProvider = getBasicCredentialsOrDefaultChain(sanitize(awsAccessKey), awsSecretKey.getPlainText(), sanitize(awsSessionToken));
+                this.credentialsIdentity = this.awsAccessKey.isEmpty() ? "default" : "keys:" + this.awsAccessKey;
             }
+            this.jobCredentials = !(awsCredentialsProvider instanceof DefaultAWSCredentialsProviderChain);
             this.proxyHost = sanitize(proxyHost);
             this.proxyPort = parseInt(proxyPort);
         } else {
@@ -148,22 +163,60 @@ public class AWSClientFactory {
         }
     }
 
+    // The clients are shared with the other builds using the same credentials, region and proxy (see AWSClientCache),
+    // so they must not be shut down by their users.
     public AWSCodeBuildClient getCodeBuildClient() throws InvalidInputException, IllegalArgumentException {
-        AWSCodeBuildClient client = new AWSCodeBuildClient(awsCredentialsProvider, getClientConfiguration());
-        client.setEndpoint("https://codebuild." + region + getAwsClientSuffix(region));
-        return client;
+        return AWSClientCache.getClient("codebuild|" + getClientCacheKey(), new AWSClientCache.ClientBuilder<AWSCodeBuildClient>() {
+            @Override
+            public AWSCodeBuildClient build() {
+                AWSCodeBuildClient client = new AWSCodeBuildClient(awsCredentialsProvider, getClientConfiguration());
+                client.setEndpoint("https://codebuild." + region + getAwsClientSuffix(region));
+                return client;
+            }
+        });
     }
 
     public AmazonS3Client getS3Client() throws InvalidInputException {
-        AmazonS3Client client = new AmazonS3Client(awsCredentialsProvider, getClientConfiguration());
-        client.setEndpoint("https://s3." + region + getAwsClientSuffix(region));
-        return client;
+        return AWSClientCache.getClient("s3|" + getClientCacheKey(), new AWSClientCache.ClientBuilder<AmazonS3Client>() {
+            @Override
+            public AmazonS3Client build() {
+                AmazonS3Client client = new AmazonS3Client(awsCredentialsProvider, getClientConfiguration());
+                client.setEndpoint("https://s3." + region + getAwsClientSuffix(region));
+                return client;
+            }
+        });
     }
 
     public AWSLogsClient getCloudWatchLogsClient() throws InvalidInputException {
-        AWSLogsClient client = new AWSLogsClient(awsCredentialsProvider, getClientConfiguration());
-        client.setEndpoint("https://logs." + region + getAwsClientSuffix(region));
-        return client;
+        return AWSClientCache.getClient("logs|" + getClientCacheKey(), new AWSClientCache.ClientBuilder<AWSLogsClient>() {
+            @Override
+            public AWSLogsClient build() {
+                AWSLogsClient client = new AWSLogsClient(awsCredentialsProvider, getClientConfiguration());
+                client.setEndpoint("https://logs." + region + getAwsClientSuffix(region));
+                return client;
+            }
+        });
+    }
+
+    // Adds to the client key what tells apart credentials with the same identity, so that fixing a secret key or
+    // editing Jenkins credentials (which replaces them with a new instance under the same id) gets new clients.
+    private String getClientCacheKey() {
+        if(awsCredentialsProvider instanceof CodeBuildBaseCredentials) {
+            String instanceId = credentialsInstanceIds.get(awsCredentialsProvider);
+            if(instanceId == null) {
+                String newId = UUID.randomUUID().toString();
+                instanceId = credentialsInstanceIds.putIfAbsent(awsCredentialsProvider, newId);
+                if(instanceId == null) {
+                    instanceId = newId;
+                }
+            }
+            return getClientKey() + "#" + instanceId;
+        } else if(awsCredentialsProvider instanceof AWSStaticCredentialsProvider) {
+            AWSCredentials credentials = awsCredentialsProvider.getCredentials();
+            String sessionToken = credentials instanceof AWSSessionCredentials ? ((AWSSessionCredentials) credentials).getSessionToken() : "";
+            return getClientKey() + "#" + DigestUtils.sha256Hex(credentials.getAWSSecretKey() + "|" + sessionToken);
+        }
+        return getClientKey();
     }
 
     private AWSCredentialsProvider getStepCreds(EnvVars stepEnvVars) {
@@ -173,6 +226,7 @@ public class AWSClientFactory {
 
         if(stepAccessKey != null && !stepAccessKey.isEmpty() && stepSecretKey != null && !stepSecretKey.isEmpty()) {
             this.credentialsDescriptor = stepCredentials;
+            this.credentialsIdentity = "keys:" + stepAccessKey;
             if(stepSessionToken != null && !stepSessionToken.isEmpty()) {
                 return new AWSStaticCredentialsProvider(new BasicSessionCredentials(stepAccessKey, stepSecretKey, stepSessionToken));
             } else {
@@ -183,23 +237,52 @@ public class AWSClientFactory {
         return null;
     }
 
+    // Resolves the credentials so that S3 clients using them can be created on an agent.
+    // @return: the config to send to the agent, or null if the credentials are the controller's own (from the default
+    // chain, such as its instance role): agents are less trusted than the controller, so those stay on the controller.
+    public AgentS3ClientConfig getAgentS3ClientConfig() {
+        if(!jobCredentials) {
+            return null;
+        }
+        AWSCredentials credentials = awsCredentialsProvider instanceof CodeBuildBaseCredentials
+                ? ((CodeBuildBaseCredentials) awsCredentialsProvider).getCredentialsValidFor(AGENT_CREDENTIALS_MIN_VALIDITY)
+                : awsCredentialsProvider.getCredentials();
+        String sessionToken = null;
+        if(credentials instanceof AWSSessionCredentials) {
+            sessionToken = ((AWSSessionCredentials) credentials).getSessionToken();
+        }
+        return new AgentS3ClientConfig("https://s3." + region + getAwsClientSuffix(region), credentials.getAWSAccessKeyId(),
+                Secret.fromString(credentials.getAWSSecretKey()), Secret.fromString(sessionToken), proxyHost, proxyPort);
+    }
+
     private ClientConfiguration getClientConfiguration() {
-        String projectVersion = "";
-        try(InputStream stream = this.getClass().getResourceAsStream(POM_PROPERTIES)) {
-            properties.load(stream);
-            projectVersion =  "/" + properties.getProperty("version");
-        } catch (IOException e) {}
+        return getClientConfiguration(proxyHost, proxyPort);
+    }
+
+    // Returns a copy of the client configuration template for the given proxy. Templates are built once per proxy and
+    // never handed out themselves, so a caller changing its copy doesn't affect the other clients.
+    public static ClientConfiguration getClientConfiguration(String proxyHost, Integer proxyPort) {
+        String key = proxyHost + ":" + proxyPort;
+        ClientConfiguration template = clientConfigurationTemplates.get(key);
+        if(template == null) {
+            template = newClientConfiguration(proxyHost, proxyPort);
+            ClientConfiguration existing = clientConfigurationTemplates.putIfAbsent(key, template);
+            if(existing != null) {
+                template = existing;
+            }
+        }
+        return new ClientConfiguration(template);
+    }
 
+    private static ClientConfiguration newClientConfiguration(String proxyHost, Integer proxyPort) {
         ClientConfiguration clientConfig = new ClientConfiguration()
-                .withUserAgentPrefix("CodeBuild-Jenkins-Plugin" + projectVersion)
+                .withUserAgentPrefix(USER_AGENT_PREFIX)
                 .withProxyHost(proxyHost)
                 .withConnectionTimeout(CLIENT_CONFIG_CONNECTION_TIMEOUT)
                 .withSocketTimeout(CLIENT_CONFIG_SOCKET_TIMEOUT)
                 .withMaxErrorRetry(CLIENT_CONFIG_MAX_ERROR_RETRIES)
                 .withMaxConnections(CLIENT_CONFIG_MAX_CONNECTIONS)
-                .withRetryPolicy(new RetryPolicy(new CodeBuildClientRetryCondition(),
-                        new PredefinedBackoffStrategies.ExponentialBackoffStrategy(RETRY_BACKOFF_BASE_DELAY, RETRY_BACKOFF_MAX_DELAY),
-                        CLIENT_CONFIG_MAX_ERROR_RETRIES, true));
+                .withRetryPolicy(RETRY_POLICY);
 
         if(proxyPort != null) {
             clientConfig.setProxyPort(proxyPort);
@@ -207,6 +290,24 @@ public class AWSClientFactory {
         return clientConfig;
     }
 
+    // @return: the version of the plugin, read from the pom.properties packaged with it, with a leading "/", or an
+    // empty string if it can't be read.
+    private static String readProjectVersion() {
+        try(InputStream stream = AWSClientFactory.class.getResourceAsStream(POM_PROPERTIES)) {
+            Properties properties = new Properties();
+            properties.load(stream);
+            return "/" + properties.getProperty("version");
+        } catch (IOException | RuntimeException e) {
+            return "";
+        }
+    }
+
+    // Identifies the credentials, region and proxy used by the clients of this factory, so that builds using the
+    // same AWS identity and endpoint can share resources such as the BuildStatusPoller.
+    public String getClientKey() {
+        return credentialsIdentity + "@" + region + "|" + proxyHost + ":" + proxyPort;
+    }
+
     public String getCredentialsDescriptor() {
         if(this.credentialsDescriptor.isEmpty()) {
             if(awsAccessKey.isEmpty()) {
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import hudson.util.Secret;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.Serializable;
+
+// Everything needed to create an S3 client on an agent, so that callables running next to the workspace can
+// transfer data to and from S3 directly instead of through the remoting channel and the controller.
+// The credentials are resolved on the controller and are only valid for as long as they would be there.
+@RequiredArgsConstructor
+public class AgentS3ClientConfig implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Getter private final String endpoint;
+    private final String accessKey;
+    private final Secret secretKey;
+    private final Secret sessionToken;
+    @Getter private final String proxyHost;
+    @Getter private final Integer proxyPort;
+
+    public AmazonS3Client createClient() {
+        AWSCredentials credentials;
+        if(sessionToken == null || sessionToken.getPlainText().isEmpty()) {
+            credentials = new BasicAWSCredentials(accessKey, secretKey.getPlainText());
+        } else {
+            credentials = new BasicSessionCredentials(accessKey, secretKey.getPlainText(), sessionToken.getPlainText());
+        }
+        AmazonS3Client client = new AmazonS3Client(new AWSStaticCredentialsProvider(credentials), AWSClientFactory.getClientConfiguration(proxyHost, proxyPort));
+        client.setEndpoint(endpoint);
+        return client;
+    }
+}
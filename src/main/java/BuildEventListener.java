@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.ProxyConfiguration;
+import jenkins.model.Jenkins;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Consumes CodeBuild state change events that an EventBridge rule delivers to an SQS queue, and wakes the
+// builds that are waiting for them. Waiting builds still poll BatchGetBuilds, but only when no event arrives
+// within their polling interval, so the queue turns completion detection from a poll into a push.
+// Every message received is deleted, so the queue should be dedicated to this Jenkins instance.
+public class BuildEventListener implements Runnable {
+
+    public static final String buildStateChangeEvent = "CodeBuild Build State Change";
+    public static final String buildPhaseChangeEvent = "CodeBuild Build Phase Change";
+
+    private static final int WAIT_TIME_SECONDS = 20;
+    private static final int MAX_NUMBER_OF_MESSAGES = 10;
+    private static final long ERROR_RETRY_INTERVAL = 5000L;
+    private static final Logger LOGGER = Logger.getLogger(BuildEventListener.class.getName());
+
+    private static BuildEventListener instance;
+
+    private final AmazonSQS sqsClient;
+    @Getter private final String queueUrl;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // build id -> callback to run when an event arrives for that build, or null for builds that wait with awaitEvent
+    private final Map<String, Runnable> watchedBuilds = new HashMap<>();
+    // builds that received an event their waiting thread hasn't consumed yet
+    private final Set<String> signalledBuilds = new HashSet<>();
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    BuildEventListener(AmazonSQS sqsClient, String queueUrl) {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+    }
+
+    // Returns the listener for the given queue, replacing the listener of a previously configured queue.
+    // Returns null if no queue is configured, in which case builds only poll.
+    public static synchronized BuildEventListener getInstance(String queueUrl) {
+        if(queueUrl == null || queueUrl.trim().isEmpty()) {
+            if(instance != null) {
+                instance.shutdown();
+                instance = null;
+            }
+            return null;
+        }
+
+        if(instance == null || !instance.getQueueUrl().equals(queueUrl.trim())) {
+            if(instance != null) {
+                instance.shutdown();
+            }
+            AmazonSQSClient client = new AmazonSQSClient(new DefaultAWSCredentialsProviderChain(), getClientConfiguration());
+            client.setEndpoint(getEndpoint(queueUrl.trim()));
+            instance = new BuildEventListener(client, queueUrl.trim());
+            instance.start();
+        }
+        return instance;
+    }
+
+    // The listener doesn't belong to a job, so it goes through the proxy configured for Jenkins, if any, with the
+    // timeouts and retry policy of the other clients.
+    private static ClientConfiguration getClientConfiguration() {
+        Jenkins instance = Jenkins.getInstance();
+        ProxyConfiguration proxy = instance == null ? null : instance.proxy;
+        if(proxy == null || proxy.name == null || proxy.name.trim().isEmpty()) {
+            return AWSClientFactory.getClientConfiguration("", null);
+        }
+        return AWSClientFactory.getClientConfiguration(proxy.name.trim(), proxy.port);
+    }
+
+    // The queue URL carries the endpoint of the queue (e.g. https://sqs.us-east-1.amazonaws.com/123456789012/queue),
+    // which also lets a local SQS-compatible service be used.
+    public static String getEndpoint(String queueUrl) {
+        URI uri = URI.create(queueUrl);
+        String endpoint = uri.getScheme() + "://" + uri.getHost();
+        if(uri.getPort() != -1) {
+            endpoint += ":" + uri.getPort();
+        }
+        return endpoint;
+    }
+
+    public synchronized void register(String buildId) {
+        register(buildId, null);
+    }
+
+    // @param onEvent: run on the listener thread when an event arrives for the build.
+    public synchronized void register(String buildId, Runnable onEvent) {
+        watchedBuilds.put(buildId, onEvent);
+        signalledBuilds.remove(buildId);
+    }
+
+    public synchronized void unregister(String buildId) {
+        watchedBuilds.remove(buildId);
+        signalledBuilds.remove(buildId);
+    }
+
+    // Waits until an event arrives for the given registered build or the timeout expires.
+    // @return: true if an event arrived.
+    public synchronized boolean awaitEvent(String buildId, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(!signalledBuilds.remove(buildId)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public void start() {
+        thread = new Thread(this, "CodeBuild event listener for " + queueUrl);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean failing = false;
+        while(running) {
+            try {
+                receiveEvents();
+                failing = false;
+            } catch (Exception e) {
+                if(!running) {
+                    return;
+                }
+                // Only the first of consecutive errors is a warning: a misconfigured queue fails on every retry.
+                LOGGER.log(failing ? Level.FINE : Level.WARNING, "Error when receiving CodeBuild events from " + queueUrl, e);
+                failing = true;
+                try {
+                    Thread.sleep(ERROR_RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Long-polls the queue once, wakes the builds the received events refer to and deletes the messages.
+    // @return: the number of messages received.
+    public int receiveEvents() {
+        List<Message> messages = sqsClient.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                .withWaitTimeSeconds(WAIT_TIME_SECONDS)
+                .withMaxNumberOfMessages(MAX_NUMBER_OF_MESSAGES)).getMessages();
+
+        for(Message message: messages) {
+            String buildId = getBuildId(message.getBody());
+            if(buildId != null) {
+                signal(buildId);
+            }
+            sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle()));
+        }
+        return messages.size();
+    }
+
+    private void signal(String buildId) {
+        Runnable onEvent;
+        synchronized (this) {
+            if(!watchedBuilds.containsKey(buildId)) {
+                return;
+            }
+            onEvent = watchedBuilds.get(buildId);
+            signalledBuilds.add(buildId);
+            notifyAll();
+        }
+        if(onEvent != null) {
+            onEvent.run();
+        }
+    }
+
+    // Returns the CodeBuild build id (project:uuid) of a build state or phase change event, or null if the message
+    // isn't one. The event is accepted as delivered by EventBridge or wrapped in an SNS notification.
+    public String getBuildId(String body) {
+        try {
+            JsonNode event = mapper.readTree(body);
+            if(event.has("Message") && event.get("Message").isTextual()) {
+                event = mapper.readTree(event.get("Message").asText());
+            }
+
+            String detailType = event.path("detail-type").asText();
+            if(!detailType.equals(buildStateChangeEvent) && !detailType.equals(buildPhaseChangeEvent)) {
+                return null;
+            }
+
+            String buildArn = event.path("detail").path("build-id").asText();
+            if(buildArn.isEmpty()) {
+                return null;
+            }
+            int index = buildArn.indexOf(":build/");
+            return index < 0 ? buildArn : buildArn.substring(index + ":build/".length());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.codebuild.AWSCodeBuildClient;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsRequest;
+import com.amazonaws.services.codebuild.model.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Shares BatchGetBuilds calls between all in-flight builds that use the same region and credentials.
+// Every waiting build registers its id here. When a build asks for its latest status and has already consumed
+// the last result fetched for it, one BatchGetBuilds call (in chunks of MAX_BATCH_SIZE ids) refreshes the status
+// of every registered build, so the other waiting builds are served from that result on their next poll.
+// The calls are made without holding the poller's lock, so a slow or throttled call doesn't block the builds that
+// already have a result to consume; builds that need a refresh while one is in flight wait for it instead of making
+// their own. A poller is dropped once its last build unregisters.
+// When a state change event arrives for a build, its cached status is marked stale, so its next poll fetches a status
+// from after the event.
+public class BuildStatusPoller {
+
+    // BatchGetBuilds accepts at most 100 build ids per call.
+    public static final int MAX_BATCH_SIZE = 100;
+    public static final String buildNotFoundError = "BatchGetBuilds did not return build ";
+
+    private static final Map<String, BuildStatusPoller> pollers = new HashMap<>();
+
+    private final String key;
+    // build id -> the generation of the last status handed out for that build
+    private final Map<String, Long> consumedGeneration = new HashMap<>();
+    // build id -> the generation in which that build's status was last fetched
+    private final Map<String, Long> fetchedGeneration = new HashMap<>();
+    private final Map<String, Build> latestBuilds = new HashMap<>();
+    private long generation = 0L;
+    private int batchGetBuildsCalls = 0;
+    private Refresh refreshInFlight;
+
+    private BuildStatusPoller(String key) {
+        this.key = key;
+    }
+
+    // Returns the poller shared by all builds using the given client key (see AWSClientFactory.getClientKey()).
+    public static synchronized BuildStatusPoller getInstance(String clientKey) {
+        String key = String.valueOf(clientKey);
+        BuildStatusPoller poller = pollers.get(key);
+        if(poller == null) {
+            poller = new BuildStatusPoller(key);
+            pollers.put(key, poller);
+        }
+        return poller;
+    }
+
+    static synchronized int size() {
+        return pollers.size();
+    }
+
+    public void register(String buildId) {
+        synchronized(BuildStatusPoller.class) {
+            // Registering again after the last build unregistered shares this poller again, unless another one
+            // has been created for the key in the meantime.
+            if(!pollers.containsKey(key)) {
+                pollers.put(key, this);
+            }
+            synchronized(this) {
+                consumedGeneration.put(buildId, 0L);
+                fetchedGeneration.remove(buildId);
+                latestBuilds.remove(buildId);
+            }
+        }
+    }
+
+    public void unregister(String buildId) {
+        synchronized(BuildStatusPoller.class) {
+            synchronized(this) {
+                consumedGeneration.remove(buildId);
+                fetchedGeneration.remove(buildId);
+                latestBuilds.remove(buildId);
+                if(consumedGeneration.isEmpty() && pollers.get(key) == this) {
+                    pollers.remove(key);
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isRegistered(String buildId) {
+        return consumedGeneration.containsKey(buildId);
+    }
+
+    // Makes the next getBuild of the given build wait for a status fetched after this call, skipping the status
+    // already fetched and the one a refresh in flight (which may have been requested before the event) publishes.
+    public synchronized void markStale(String buildId) {
+        Long consumed = consumedGeneration.get(buildId);
+        if(consumed != null) {
+            consumedGeneration.put(buildId, Math.max(consumed, refreshInFlight != null ? generation + 1 : generation));
+        }
+    }
+
+    // Returns the latest status of the given registered build. The status is fetched again, together with the
+    // status of every other registered build, unless a result that this build hasn't seen yet is already available.
+    // @param cbClient: the CodeBuild client of the calling build; any client for this poller's key can be used.
+    public Build getBuild(AWSCodeBuildClient cbClient, String buildId) throws Exception {
+        if(!isRegistered(buildId)) {
+            register(buildId);
+        }
+
+        while(true) {
+            Refresh refresh;
+            boolean started = false;
+            synchronized(this) {
+                Long fetched = fetchedGeneration.get(buildId);
+                if(fetched != null && fetched > consumedGeneration.get(buildId)) {
+                    consumedGeneration.put(buildId, fetched);
+                    return latestBuilds.get(buildId);
+                }
+                if(refreshInFlight == null) {
+                    refreshInFlight = new Refresh(cbClient, new ArrayList<>(consumedGeneration.keySet()));
+                    started = true;
+                }
+                refresh = refreshInFlight;
+            }
+
+            if(started) {
+                refresh.run();
+            }
+            long published;
+            try {
+                published = refresh.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+            }
+
+            // A build registered after the refresh started, or marked stale while it was in flight, waits for the
+            // next one.
+            if(refresh.ids.contains(buildId)) {
+                synchronized(this) {
+                    Long fetched = fetchedGeneration.get(buildId);
+                    if(fetched == null || fetched < published) {
+                        throw new Exception(buildNotFoundError + buildId);
+                    }
+                    if(fetched > consumedGeneration.get(buildId)) {
+                        consumedGeneration.put(buildId, fetched);
+                        return latestBuilds.get(buildId);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized int getBatchGetBuildsCalls() {
+        return batchGetBuildsCalls;
+    }
+
+    private synchronized void batchGetBuildsCalled() {
+        batchGetBuildsCalls++;
+    }
+
+    // Fetches the status of the given builds, then publishes them under the poller's lock as a new generation, which
+    // is the result of the refresh.
+    private class Refresh extends FutureTask<Long> {
+        private final List<String> ids;
+
+        Refresh(final AWSCodeBuildClient cbClient, final List<String> ids) {
+            super(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    List<Build> fetched = new ArrayList<>();
+                    try {
+                        for(int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+                            List<String> chunk = ids.subList(i, Math.min(i + MAX_BATCH_SIZE, ids.size()));
+                            batchGetBuildsCalled();
+                            List<Build> builds = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(new ArrayList<>(chunk))).getBuilds();
+                            if(builds != null) {
+                                fetched.addAll(builds);
+                            }
+                        }
+                        return publish(fetched);
+                    } finally {
+                        // Cleared before the waiting builds are woken up, so the next refresh can start right away.
+                        refreshFinished();
+                    }
+                }
+            });
+            this.ids = ids;
+        }
+    }
+
+    private synchronized void refreshFinished() {
+        refreshInFlight = null;
+    }
+
+    private synchronized long publish(List<Build> builds) {
+        generation++;
+        for(Build b: builds) {
+            if(consumedGeneration.containsKey(b.getId())) {
+                latestBuilds.put(b.getId(), b);
+                fetchedGeneration.put(b.getId(), generation);
+            }
+        }
+        return generation;
+    }
+}
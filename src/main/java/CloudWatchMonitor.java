@@ -25,17 +25,24 @@ import lombok.Setter;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CloudWatchMonitor {
 
     @Setter private AWSLogsClient logsClient;
     @Setter @Getter private LogsLocation logsLocation;
     @Getter private List<String> latestLogs;
-    @Getter private Long lastPollTime;
+    @Getter private Long lastEventTime;
+    @Getter private String nextForwardToken;
+    // key -> number of the events already read with that key and the timestamp lastEventTime
+    private Map<String, Integer> lastEventKeys = new HashMap<>();
     private boolean cwlStreamingDisabled;
 
     private static final int htmlMaxLineLength = 2000;
+    // Bounds a single poll on streams that are written faster than they can be read.
+    private static final int maxPagesPerPoll = 50;
     public static final String noLogsMessage = "No CloudWatch logs found for this build.";
     public static final String streamingDisabledMessage = "CloudWatch logs streaming is disabled for this build.";
     public static final String failedConfigurationLogsMessage = "CloudWatch configuration for this build is incorrect.";
@@ -50,10 +57,10 @@ public class CloudWatchMonitor {
         if(cwlStreamingDisabled) {
             latestLogs = Arrays.asList(streamingDisabledMessage);
         }
-        lastPollTime = 0L;
+        lastEventTime = 0L;
     }
 
-    // Checks if the CloudWatch logs exist. If they do, retrieves/stores them in this.latestLogs.
+    // Checks if the CloudWatch logs exist. If they do, retrieves/stores the events written since the last poll in this.latestLogs.
     // If the logs don't exist yet, sets this.latestLogs to an error message.
     // Does nothing if CloudWatch logs streaming is disabled
     public void pollForLogs(TaskListener listener) {
@@ -61,16 +68,36 @@ public class CloudWatchMonitor {
             return;
         } else if(this.logsLocation != null && this.logsLocation.getGroupName() != null && this.logsLocation.getStreamName() != null) {
             this.latestLogs = new ArrayList<>();
-            GetLogEventsRequest logRequest = new GetLogEventsRequest()
-                .withStartTime(lastPollTime)
-                .withStartFromHead(true)
-                .withLogGroupName(logsLocation.getGroupName())
-                .withLogStreamName(logsLocation.getStreamName());
             try {
-                GetLogEventsResult logsResult = logsClient.getLogEvents(logRequest);
-                getAndFormatLogs(logsResult.getEvents(), listener);
+                // Follow the forward token from page to page until the end of the stream is reached.
+                for(int page = 0; page < maxPagesPerPoll; page++) {
+                    GetLogEventsRequest logRequest = new GetLogEventsRequest()
+                        .withStartFromHead(true)
+                        .withLogGroupName(logsLocation.getGroupName())
+                        .withLogStreamName(logsLocation.getStreamName());
+                    boolean fromStartTime = nextForwardToken == null;
+                    if(fromStartTime) {
+                        logRequest.setStartTime(lastEventTime);
+                    } else {
+                        logRequest.setNextToken(nextForwardToken);
+                    }
+
+                    GetLogEventsResult logsResult = logsClient.getLogEvents(logRequest);
+                    getAndFormatLogs(logsResult.getEvents(), listener, fromStartTime);
+
+                    String token = logsResult.getNextForwardToken();
+                    boolean endOfStream = token == null || token.equals(nextForwardToken) || logsResult.getEvents().isEmpty();
+                    if(token != null) {
+                        nextForwardToken = token;
+                    }
+                    if(endOfStream) {
+                        break;
+                    }
+                }
             } catch (Exception e) {
-                latestLogs = Arrays.asList(e.getMessage());
+                // Resume from the time of the last event read; the events already read at that time are skipped.
+                nextForwardToken = null;
+                latestLogs.add(e.getMessage());
                 return;
             }
         } else {
@@ -79,22 +106,60 @@ public class CloudWatchMonitor {
         }
     }
 
-    private void getAndFormatLogs(List<OutputLogEvent> logs, TaskListener listener) {
-        if(logs.size() != 0) {
-            for (int i = 0; i < logs.size(); i++) {
-                String entry = logs.get(i).getMessage();
-                //trim the [Container] string from the log message.
-                if(entry.startsWith("[Container]")) {
-                    entry = entry.substring(entry.indexOf("]") + 2);
+    // @param fromStartTime: whether the events were read from the time of the last event read rather than from a
+    // forward token. Only then can they include events already read, which are skipped.
+    private void getAndFormatLogs(List<OutputLogEvent> logs, TaskListener listener, boolean fromStartTime) {
+        long readUntil = lastEventTime;
+        Map<String, Integer> alreadyRead = fromStartTime ? new HashMap<>(lastEventKeys) : new HashMap<String, Integer>();
+        for(OutputLogEvent event: logs) {
+            long timestamp = getTimestamp(event);
+            String key = getKey(event);
+            if(fromStartTime) {
+                if(timestamp < readUntil) {
+                    continue;
                 }
-                if (entry.length() > htmlMaxLineLength) {
-                    entry = Utils.formatStringWithEllipsis(entry, htmlMaxLineLength);
+                Integer count = alreadyRead.get(key);
+                if(timestamp == readUntil && count != null && count > 0) {
+                    alreadyRead.put(key, count - 1);
+                    continue;
                 }
-                LoggingHelper.log(listener, entry.replace("\n", ""));
-                latestLogs.add(entry);
             }
-            this.lastPollTime = logs.get(logs.size()-1).getTimestamp() + 1;
+            eventRead(timestamp, key);
+            String entry = event.getMessage();
+            //trim the [Container] string from the log message.
+            if(entry.startsWith("[Container]")) {
+                entry = entry.substring(entry.indexOf("]") + 2);
+            }
+            if (entry.length() > htmlMaxLineLength) {
+                entry = Utils.formatStringWithEllipsis(entry, htmlMaxLineLength);
+            }
+            LoggingHelper.log(listener, entry.replace("\n", ""));
+            latestLogs.add(entry);
+        }
+    }
+
+    // GetLogEvents doesn't return event ids, so an event is identified by its timestamp, ingestion time and message.
+    // Only the events at the latest timestamp need to be remembered, since reads never resume before that time.
+    // The same line can be logged more than once at the same time, so the events with each key are counted.
+    private void eventRead(long timestamp, String key) {
+        if(timestamp < lastEventTime) {
+            // Read out of order from a forward token: a read resuming from lastEventTime won't return it again.
+            return;
         }
+        if(timestamp > lastEventTime) {
+            lastEventTime = timestamp;
+            lastEventKeys.clear();
+        }
+        Integer count = lastEventKeys.get(key);
+        lastEventKeys.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static long getTimestamp(OutputLogEvent event) {
+        return event.getTimestamp() == null ? 0L : event.getTimestamp();
+    }
+
+    private static String getKey(OutputLogEvent event) {
+        return event.getIngestionTime() + ":" + event.getMessage();
     }
 
 }
@@ -19,10 +19,27 @@ import com.amazonaws.services.codebuild.model.StatusType;
 import hudson.model.Action;
 import hudson.model.Run;
 import lombok.Data;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @Data
 public class CodeBuildAction implements Action {
@@ -30,7 +47,9 @@ public class CodeBuildAction implements Action {
     private final Run<?, ?> build;
 
     private String buildId;
+    // The most recent log lines. The full log is written to getLogFile() so it doesn't stay on the heap or in build.xml.
     private List<String> logs;
+    private int totalLogLines;
     private String cloudWatchLogsURL;
     private String s3LogsURL;
     private List<BuildPhase> phases;
@@ -53,6 +72,8 @@ public class CodeBuildAction implements Action {
     private Boolean jenkinsBuildSucceeds;
 
     private static final int MAX_DASHBOARD_NAME_LENGTH = 15;
+    public static final int MAX_LOG_LINES_IN_MEMORY = 500;
+    public static final int LOG_PAGE_SIZE = 1000;
 
 
     @Override
@@ -166,7 +187,11 @@ public class CodeBuildAction implements Action {
         return currentStatus;
     }
 
-    public void updateLogs(List<String> newLogs) {
+    public synchronized List<String> getLogs() {
+        return logs == null ? null : new ArrayList<>(logs);
+    }
+
+    public synchronized void updateLogs(List<String> newLogs) {
         if(logs != null) {
             if(logs.size() == 1) {
                 if(logs.get(0).equals(CloudWatchMonitor.noLogsMessage)) {
@@ -180,6 +205,107 @@ public class CodeBuildAction implements Action {
                 }
             }
             this.logs.addAll(newLogs);
+            if(logs.size() > MAX_LOG_LINES_IN_MEMORY) {
+                logs.subList(0, logs.size() - MAX_LOG_LINES_IN_MEMORY).clear();
+            }
+            if(!isStatusMessage(newLogs)) {
+                appendToLogFile(newLogs);
+            }
+        }
+    }
+
+    // The messages that stand in for the logs while there are none aren't part of the build log.
+    private boolean isStatusMessage(List<String> newLogs) {
+        return newLogs.size() == 1 && (newLogs.get(0).equals(CloudWatchMonitor.noLogsMessage) ||
+                newLogs.get(0).equals(CloudWatchMonitor.streamingDisabledMessage));
+    }
+
+    // Each batch of lines is appended as its own gzip member; GZIPInputStream reads the concatenated members as one stream.
+    private void appendToLogFile(List<String> newLogs) {
+        File logFile = getLogFile();
+        if(logFile == null || newLogs.isEmpty()) {
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(logFile, true)), StandardCharsets.UTF_8))) {
+            for(String line: newLogs) {
+                writer.write(line.replace("\n", ""));
+                writer.write('\n');
+            }
+            totalLogLines += newLogs.size();
+        } catch (IOException e) {
+            // The recent lines are still kept in memory.
+        }
+    }
+
+    // @return: the compressed full log of this CodeBuild build in the directory of the Jenkins build, or null if there is none.
+    public File getLogFile() {
+        File rootDir = build == null ? null : build.getRootDir();
+        if(rootDir == null || buildId == null) {
+            return null;
+        }
+        return new File(rootDir, "codebuild-" + getUrlName() + ".log.gz");
+    }
+
+    public synchronized int getLogPageCount() {
+        return (totalLogLines + LOG_PAGE_SIZE - 1) / LOG_PAGE_SIZE;
+    }
+
+    // Reads one page of the full log from disk.
+    // @param page: the 1-based page number; the last page is returned if it isn't a valid page number.
+    public List<String> getLogPage(String page) {
+        int pageCount = getLogPageCount();
+        int pageNumber;
+        try {
+            pageNumber = Integer.parseInt(page);
+        } catch (NumberFormatException e) {
+            pageNumber = pageCount;
+        }
+        if(pageNumber < 1 || pageNumber > pageCount) {
+            pageNumber = pageCount;
+        }
+        if(pageNumber < 1) {
+            return Collections.emptyList();
+        }
+
+        List<String> lines = new ArrayList<>();
+        int start = (pageNumber - 1) * LOG_PAGE_SIZE;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openLogFile(), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null && lines.size() < LOG_PAGE_SIZE) {
+                if(lineNumber++ >= start) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            return getLogs();
+        }
+        return lines;
+    }
+
+    // Streams the full log as plain text.
+    public void doFullLog(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        File logFile = getLogFile();
+        if(logFile == null || !logFile.exists()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        try (InputStream in = openLogFile(); OutputStream out = rsp.getOutputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private InputStream openLogFile() throws IOException {
+        File logFile = getLogFile();
+        if(logFile == null || !logFile.exists()) {
+            throw new IOException("No log file for build " + buildId);
         }
+        return new GZIPInputStream(new FileInputStream(logFile));
     }
 }
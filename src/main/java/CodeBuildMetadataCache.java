@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.codebuild.AWSCodeBuildClient;
+import com.amazonaws.services.codebuild.model.BatchGetProjectsRequest;
+import com.amazonaws.services.codebuild.model.BatchGetProjectsResult;
+import com.amazonaws.services.codebuild.model.ProjectSource;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Remembers the project source (BatchGetProjects) and the bucket versioning (GetBucketVersioning) looked up before
+// uploading the source of a JenkinsSource build, so that consecutive builds of the same project don't ask again.
+// Entries are keyed by the credentials identity and region of the client (see AWSClientFactory.getClientKey) and
+// expire after TTL, or NEGATIVE_TTL for a project that doesn't exist or a bucket that isn't versioned, so that fixing
+// either is picked up quickly. Lookups that failed aren't remembered.
+// Concurrent builds that need the same entry share a single lookup. Background lookups run on the cache's own few
+// threads, so a slow S3 endpoint can't hold up the Jenkins timer threads.
+public class CodeBuildMetadataCache {
+
+    static final long TTL = TimeUnit.MINUTES.toMillis(5);
+    static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(1);
+
+    static final int LOOKUP_THREADS = 4;
+
+    private static final Map<String, Lookup<?>> entries = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor lookups = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS,
+            1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "CodeBuild metadata lookup"));
+
+    static {
+        lookups.allowCoreThreadTimeOut(true);
+    }
+
+    // @return: the source of the given project, or null if there is no such project.
+    public static ProjectSource getProjectSource(String clientKey, final String projectName, final AWSCodeBuildClient cbClient) throws InterruptedException {
+        Future<ProjectSource> source = get("project|" + clientKey + "|" + projectName, new Callable<ProjectSource>() {
+            @Override
+            public ProjectSource call() {
+                BatchGetProjectsResult bgpResult = cbClient.batchGetProjects(new BatchGetProjectsRequest().withNames(projectName));
+                return bgpResult.getProjects().isEmpty() ? null : bgpResult.getProjects().get(0).getSource();
+            }
+        }, false);
+        return getValue(source);
+    }
+
+    // Looks up in the background whether the given bucket is versioned, so the caller can go on while it's done.
+    // @return: the versioning of the bucket, to be passed to getValue once it's needed.
+    public static Future<Boolean> isBucketVersioned(String clientKey, final String bucketName, final AWSClientFactory awsClientFactory) {
+        return get("bucket|" + clientKey + "|" + bucketName, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return CodeBuilderValidation.checkBucketIsVersioned(bucketName, awsClientFactory);
+            }
+        }, true);
+    }
+
+    // Waits for a lookup and returns its result, rethrowing what made it fail.
+    public static <T> T getValue(Future<T> lookup) throws InterruptedException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    public static void invalidateProject(String clientKey, String projectName) {
+        entries.remove("project|" + clientKey + "|" + projectName);
+    }
+
+    public static void invalidateBucket(String clientKey, String bucketName) {
+        entries.remove("bucket|" + clientKey + "|" + bucketName);
+    }
+
+    public static void invalidate() {
+        entries.clear();
+    }
+
+    // Stops the background lookups. Builds waiting for a lookup that didn't start get a CancellationException.
+    @Terminator
+    public static void shutdown() {
+        for(Runnable lookup: lookups.shutdownNow()) {
+            ((Future<?>) lookup).cancel(false);
+        }
+        invalidate();
+    }
+
+    static void evictExpired(long now) {
+        Iterator<Lookup<?>> it = entries.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Future<T> get(String key, Callable<T> callable, boolean async) {
+        evictExpired(System.currentTimeMillis());
+
+        Lookup<T> lookup = new Lookup<>(key, callable);
+        Lookup<?> existing = entries.putIfAbsent(key, lookup);
+        if(existing != null) {
+            return (Future<T>) existing;
+        }
+        if(async) {
+            try {
+                lookups.execute(lookup);
+                return lookup;
+            } catch (RejectedExecutionException e) {
+                // Jenkins is stopping: look it up right away.
+            }
+        }
+        lookup.run();
+        return lookup;
+    }
+
+    private static class Lookup<T> extends FutureTask<T> {
+        private final String key;
+        private volatile long loadedAt;
+        private volatile boolean negative;
+
+        Lookup(String key, Callable<T> callable) {
+            super(callable);
+            this.key = key;
+        }
+
+        @Override
+        protected void set(T value) {
+            negative = value == null || Boolean.FALSE.equals(value);
+            loadedAt = System.currentTimeMillis();
+            super.set(value);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            entries.remove(key, this);
+            super.setException(t);
+        }
+
+        boolean isExpired(long now) {
+            return isDone() && now - loadedAt >= (negative ? NEGATIVE_TTL : TTL);
+        }
+    }
+}
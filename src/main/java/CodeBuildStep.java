@@ -14,32 +14,34 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
-import com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials;
 import com.amazonaws.services.codebuild.model.*;
-import com.cloudbees.hudson.plugins.folder.Folder;
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.google.inject.Inject;
 import enums.*;
 import hudson.*;
-import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import lombok.Getter;
+import org.acegisecurity.Authentication;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import javax.annotation.Nonnull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class CodeBuildStep extends AbstractStepImpl {
 
@@ -57,6 +59,8 @@ public class CodeBuildStep extends AbstractStepImpl {
     @Getter private String workspaceSubdir;
     @DataBoundSetter public String workspaceIncludes;
     @DataBoundSetter public String workspaceExcludes;
+    @DataBoundSetter public String compressionLevel;
+    @DataBoundSetter public String storedExtensions;
     @Getter private String sourceVersion;
     @Getter private String sseAlgorithm;
     @Getter private String gitCloneDepthOverride;
@@ -100,6 +104,7 @@ public class CodeBuildStep extends AbstractStepImpl {
     @Getter private String exceptionFailureMode;
     @Getter private String downloadArtifacts;
     @Getter private String downloadArtifactsRelativePath;
+    @DataBoundSetter public String extractArtifacts;
 
     @DataBoundSetter
     public void setCredentialsType(String credentialsType) {
@@ -547,30 +552,7 @@ public class CodeBuildStep extends AbstractStepImpl {
         public ListBoxModel doFillCredentialsIdItems() {
             final ListBoxModel selections = new ListBoxModel();
 
-            SystemCredentialsProvider s = SystemCredentialsProvider.getInstance();
-            Set<String> displayCredentials = new HashSet<>();
-
-            for (Credentials c: s.getCredentials()) {
-                if (c instanceof CodeBuildBaseCredentials) {
-                    displayCredentials.add(((CodeBuildBaseCredentials) c).getId());
-                }
-            }
-
-            Jenkins instance = Jenkins.getInstance();
-            if(instance != null) {
-                List<Folder> folders = instance.getAllItems(Folder.class);
-                for(Folder folder: folders) {
-                    List<Credentials> creds = CredentialsProvider.lookupCredentials(Credentials.class, (Item) folder);
-                    for(Credentials cred: creds) {
-                        if (cred instanceof CodeBuildBaseCredentials) {
-                            displayCredentials.add(((CodeBuildBaseCredentials) cred).getId());
-                        }
-                    }
-                }
-            }
-
-
-            for(String credString: displayCredentials) {
+            for(String credString: CredentialsIndex.getCredentialsIds()) {
                 selections.add(credString);
             }
 
@@ -609,10 +591,16 @@ public class CodeBuildStep extends AbstractStepImpl {
         }
     }
 
-    public static final class CodeBuildExecution extends AbstractSynchronousNonBlockingStepExecution<CodeBuildResult> {
+    // Runs the step without holding an executor thread while the CodeBuild build is in progress.
+    // Starting the build, downloading artifacts and stopping the build run on a shared pool, and the status is
+    // polled from tasks scheduled on the Jenkins timer, so a waiting build only costs a scheduled task.
+    public static final class CodeBuildExecution extends AbstractStepExecutionImpl {
 
         private static final long serialVersionUID = 1L;
 
+        private static final ExecutorService executorService = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "CodeBuildStep.CodeBuildExecution"));
+
         @Inject
         private transient CodeBuildStep step;
 
@@ -628,9 +616,19 @@ public class CodeBuildStep extends AbstractStepImpl {
         @StepContextParameter
         private transient TaskListener listener;
 
+        private transient CodeBuilder builder;
+        private transient Authentication auth;
+        private transient Future<?> task;
+        private transient boolean pollScheduled;
+        private transient boolean eventPending;
+        private transient boolean done;
+        // Set while the source is uploaded or the artifacts downloaded. Stopping the step doesn't interrupt them, so that
+        // no multipart upload or partial artifact is left behind; the build is stopped once they're finished.
+        private transient boolean transferring;
+
         @Override
-        protected CodeBuildResult run() throws Exception {
-            CodeBuilder builder = (CodeBuilder) new CodeBuilder(
+        public boolean start() throws Exception {
+            builder = (CodeBuilder) new CodeBuilder(
                     step.getCredentialsType(), step.getCredentialsId(),
                     step.getProxyHost(), step.getProxyPort(),
                     step.getAwsAccessKey(), Secret.fromString(step.getAwsSecretKey()), step.getAwsSessionToken(),
@@ -649,19 +647,218 @@ public class CodeBuildStep extends AbstractStepImpl {
             ).readResolve();
             builder.workspaceIncludes = step.workspaceIncludes;
             builder.workspaceExcludes = step.workspaceExcludes;
+            builder.compressionLevel = step.compressionLevel;
+            builder.storedExtensions = step.storedExtensions;
+            builder.extractArtifacts = step.extractArtifacts;
+            auth = Jenkins.getAuthentication();
+
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if(!startTransfer()) {
+                            return;
+                        }
+                        boolean started;
+                        try {
+                            started = builder.startBuild(run, ws, launcher, listener, getContext());
+                        } finally {
+                            endTransfer();
+                        }
+                        if(started) {
+                            builder.setBuildEventCallback(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onBuildEvent();
+                                }
+                            });
+                            schedulePoll(0L);
+                        } else {
+                            complete();
+                        }
+                    } catch (AbortException e) {
+                        complete();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull final Throwable cause) throws Exception {
+            synchronized (this) {
+                if(done) {
+                    return;
+                }
+                done = true;
+                if(task != null) {
+                    task.cancel(!transferring);
+                }
+            }
+
+            // The stop task waits for any running start or poll task to finish before stopping the CodeBuild build.
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try (ACLContext ctx = ACL.as(auth)) {
+                        synchronized (builder) {
+                            if(builder.isBuildStarted()) {
+                                builder.releaseBuild();
+                                builder.stopBuild(run, listener);
+                            }
+                        }
+                    } catch (Exception e) {
+                        LoggingHelper.log(listener, "Error when stopping build: ", e.getMessage());
+                    } finally {
+                        getContext().onFailure(cause);
+                    }
+                }
+            });
+        }
 
+        private synchronized void schedulePoll(long delay) {
+            if(done) {
+                return;
+            }
+            if(eventPending) {
+                eventPending = false;
+                delay = 0L;
+            }
+            pollScheduled = true;
+            task = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CodeBuildExecution.this) {
+                        pollScheduled = false;
+                    }
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            poll();
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        // Polls right away when a state change event arrives for the build, instead of waiting for the scheduled poll.
+        private synchronized void onBuildEvent() {
+            if(done) {
+                return;
+            }
+            if(pollScheduled && task.cancel(false)) {
+                pollScheduled = false;
+                schedulePoll(0L);
+            } else {
+                // A poll is running; the next one is scheduled right after it.
+                eventPending = true;
+            }
+        }
+
+        private void poll() {
             try {
-                builder.perform(run, ws, launcher, listener, getContext());
+                try {
+                    if(builder.pollBuild(run, listener)) {
+                        schedulePoll(builder.getPollingInterval());
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    // The step is being stopped.
+                    return;
+                } catch (Exception e) {
+                    if(builder.handlePollingError(run, listener, e)) {
+                        schedulePoll(builder.getPollingInterval());
+                    } else {
+                        complete();
+                    }
+                    return;
+                }
+
+                builder.releaseBuild();
+                if(!startTransfer()) {
+                    return;
+                }
+                try {
+                    builder.completeBuild(run, ws, listener);
+                } finally {
+                    endTransfer();
+                }
+                complete();
             } catch (AbortException e) {
-                throw new CodeBuildException(builder.getCodeBuildResult());
+                complete();
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        // Runs the given task on the shared pool as the user that started the step, one task of this step at a time.
+        private void submit(final Runnable r) {
+            synchronized (this) {
+                if(done) {
+                    return;
+                }
+                task = executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (ACLContext ctx = ACL.as(auth)) {
+                            synchronized (builder) {
+                                if(!isDone()) {
+                                    r.run();
+                                }
+                            }
+                        }
+                    }
+                });
             }
+        }
 
+        // Completing the step releases the build; when the step is stopped instead, the stop task releases it.
+        private void complete() {
+            if(!markDone()) {
+                return;
+            }
+            builder.releaseBuild();
             CodeBuildResult result = builder.getCodeBuildResult();
             if(result.getStatus().equals(CodeBuildResult.FAILURE) || result.getStatus().equals(CodeBuildResult.STOPPED)) {
-                throw new CodeBuildException(result);
+                getContext().onFailure(new CodeBuildException(result));
+            } else {
+                getContext().onSuccess(result);
+            }
+        }
+
+        private void fail(Throwable t) {
+            if(markDone()) {
+                builder.releaseBuild();
+                getContext().onFailure(t);
+            }
+        }
+
+        // @return: false if the step is already being stopped, in which case the task may have been interrupted.
+        private synchronized boolean startTransfer() {
+            if(done) {
+                return false;
             }
+            transferring = true;
+            return true;
+        }
+
+        private synchronized void endTransfer() {
+            transferring = false;
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
 
-            return result;
+        // @return: true if the step was not done yet, i.e. the caller is the one that completes the step context.
+        private synchronized boolean markDone() {
+            if(done) {
+                return false;
+            }
+            done = true;
+            return true;
         }
 
         private void readObject(java.io.ObjectInputStream stream) throws java.io.IOException, ClassNotFoundException {
@@ -14,16 +14,11 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
-import com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials;
 import com.amazonaws.codebuild.jenkinsplugin.Validation;
 import com.amazonaws.services.codebuild.AWSCodeBuildClient;
 import com.amazonaws.services.codebuild.model.*;
 import com.amazonaws.services.codebuild.model.Build;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.cloudbees.hudson.plugins.folder.Folder;
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import enums.*;
 import hudson.*;
 import hudson.model.*;
@@ -49,9 +44,11 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import static com.amazonaws.codebuild.jenkinsplugin.Validation.*;
 
@@ -71,6 +68,8 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
     @Getter private String workspaceSubdir;
     @DataBoundSetter public String workspaceIncludes;
     @DataBoundSetter public String workspaceExcludes;
+    @DataBoundSetter public String compressionLevel;
+    @DataBoundSetter public String storedExtensions;
     @Getter private String sourceVersion;
     @Getter private String sseAlgorithm;
     @Getter private String gitCloneDepthOverride;
@@ -116,6 +115,7 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
     @Getter private String exceptionFailureMode;
     @Getter private String downloadArtifacts;
     @Getter private String downloadArtifactsRelativePath;
+    @DataBoundSetter public String extractArtifacts;
     private EnvVars envVars;
     private StepContext stepContext;
 
@@ -134,6 +134,18 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
     private int batchGetBuildsCalls;
     private DescriptorImpl descriptor;
 
+    // State of the CodeBuild build started by this step, used between startBuild, pollBuild and completeBuild.
+    private transient AWSClientFactory awsClientFactory;
+    private transient AWSCodeBuildClient cbClient;
+    private transient BuildStatusPoller statusPoller;
+    private transient String buildId;
+    // The phase the build was in when the polling interval was last computed.
+    private transient String pollingPhase;
+    private transient Build currentBuild;
+    private transient CodeBuildAction action;
+    private transient CloudWatchMonitor logMonitor;
+    private transient BuildEventListener eventListener;
+
 
     @DataBoundConstructor
     public CodeBuilder(String credentialsType, String credentialsId, String proxyHost, String proxyPort, String awsAccessKey, Secret awsSecretKey, String awsSessionToken,
@@ -269,10 +281,49 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
      */
     @Override
     public void perform(@Nonnull Run<?, ?> build, @Nonnull FilePath ws, @Nonnull Launcher launcher, @Nonnull TaskListener listener) throws InterruptedException, IOException {
+        if(!startBuild(build, ws, launcher, listener)) {
+            return;
+        }
+
+        //poll buildResult for build status until it's complete.
+        try {
+            do {
+                try {
+                    pollBuild(build, listener);
+                    waitForNextPoll();
+                } catch(Exception e) {
+                    if(e.getClass().equals(InterruptedException.class)) {
+                        //Request to stop Jenkins build has been made.
+                        stopBuild(build, listener);
+                        return;
+                    } else if(!handlePollingError(build, listener, e)) {
+                        return;
+                    }
+                    Thread.sleep(getSleepTime(descriptor));
+                }
+            } while(isBuildInProgress());
+        } finally {
+            releaseBuild();
+        }
+
+        completeBuild(build, ws, listener);
+    }
+
+    public boolean startBuild(@Nonnull Run<?, ?> build, @Nonnull FilePath ws, @Nonnull Launcher launcher, @Nonnull TaskListener listener, StepContext stepContext) throws InterruptedException, IOException {
+        this.stepContext = stepContext;
+        return startBuild(build, ws, launcher, listener);
+    }
+
+    // Validates the configuration, uploads the Jenkins source if needed and calls StartBuild.
+    // @return: true if the CodeBuild build was started. Otherwise the Jenkins build has already been failed.
+    public boolean startBuild(@Nonnull Run<?, ?> build, @Nonnull FilePath ws, @Nonnull Launcher launcher, @Nonnull TaskListener listener) throws InterruptedException, IOException {
         descriptor = getDescriptor();
         envVars = build.getEnvironment(listener);
+        buildId = null;
+        currentBuild = null;
+        action = null;
+        logMonitor = null;
 
-        AWSClientFactory awsClientFactory;
         try {
             awsClientFactory = new AWSClientFactory(
                     getParameterized(this.credentialsType),
@@ -287,19 +338,19 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
                     this.stepContext);
         } catch (Exception e) {
             failBuild(build, listener, authorizationError, e.getMessage());
-            return;
+            return false;
         }
 
         String projectConfigError = CodeBuilderValidation.checkEssentialConfig(this);
         if(!projectConfigError.isEmpty()) {
             failBuild(build, listener, configuredImproperlyError, projectConfigError);
-            return;
+            return false;
         }
 
         String overridesErrorMessage = CodeBuilderValidation.checkStartBuildOverridesConfig(this);
         if(!overridesErrorMessage.isEmpty()) {
             failBuild(build, listener, configuredImproperlyError, overridesErrorMessage);
-            return;
+            return false;
         }
 
         Collection<EnvironmentVariable> codeBuildEnvVars = null;
@@ -308,21 +359,20 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             codeBuildEnvVars.addAll(mapEnvVariables(getParameterized(envParameters), EnvironmentVariableType.PARAMETER_STORE));
         } catch(InvalidInputException e) {
             failBuild(build, listener, configuredImproperlyError, e.getMessage());
-            return;
+            return false;
         }
         if(CodeBuilderValidation.envVariablesHaveRestrictedPrefix(codeBuildEnvVars)) {
             failBuild(build, listener, configuredImproperlyError, envVariableNameSpaceError);
-            return;
+            return false;
         }
 
         LoggingHelper.log(listener, awsClientFactory.getCredentialsDescriptor());
 
-        final AWSCodeBuildClient cbClient;
         try {
             cbClient = awsClientFactory.getCodeBuildClient();
         } catch (Exception e) {
             failBuild(build, listener, "Error when constructing CodeBuild client: ", e.getMessage());
-            return;
+            return false;
         }
 
         StartBuildRequest startBuildRequest = new StartBuildRequest().withProjectName(getParameterized(projectName)).
@@ -382,7 +432,7 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             secondaryArtifacts = Utils.parseDataList(getParameterized(secondaryArtifactsOverride), ProjectArtifacts.class);
         } catch (InvalidInputException e) {
             failBuild(build, listener, invalidSecondarySourceArtifacts, e.getMessage());
-            return;
+            return false;
         }
 
         if(secondarySources != null && !secondarySources.isEmpty()) {
@@ -402,7 +452,7 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             if(!getParameterized(sourceTypeOverride).isEmpty() || !getParameterized(sourceLocationOverride).isEmpty()) {
                 if(!CodeBuilderValidation.checkJenkinsSourceOverrides(getParameterized(sourceTypeOverride), getParameterized(sourceLocationOverride))) {
                     failBuild(build, listener, configuredImproperlyError, jenkinsSourceOverrideError);
-                    return;
+                    return false;
                 }
 
                 buildSourceLocation = getParameterized(sourceLocationOverride);
@@ -411,33 +461,56 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
                     buildSourceLocation = retrieveProjectSourceInfo(cbClient);
                 } catch(Exception e) {
                     failBuild(build, listener, configuredImproperlyError, e.getMessage());
-                    return;
+                    return false;
                 }
             }
 
             String sourceS3Bucket = Utils.getS3BucketFromObjectArn(buildSourceLocation);
             String sourceS3Key = Utils.getS3KeyFromObjectArn(buildSourceLocation);
-            if(!CodeBuilderValidation.checkBucketIsVersioned(sourceS3Bucket, awsClientFactory)) {
-                failBuild(build, listener, notVersionsedS3BucketError, "");
-                return;
+            // The versioning of the bucket is checked while the source is zipped and uploaded.
+            Future<Boolean> bucketIsVersioned = CodeBuildMetadataCache.isBucketVersioned(awsClientFactory.getClientKey(), sourceS3Bucket, awsClientFactory);
+
+            AmazonS3Client s3Client = awsClientFactory.getS3Client();
+            S3DataManager s3DataManager = new S3DataManager(s3Client, sourceS3Bucket, sourceS3Key, getParameterized(sseAlgorithm), getParameterized(localSourcePath), getParameterized(workspaceSubdir), getParameterized(workspaceIncludes), getParameterized(workspaceExcludes));
+            s3DataManager.setZipThreads(descriptor.getZipThreads());
+            s3DataManager.setDeterministicZip(descriptor.isDeterministicZip());
+            s3DataManager.setCompressionLevel(getSourceCompressionLevel());
+            s3DataManager.setStoredExtensions(getParameterized(storedExtensions));
+            if(descriptor.isAgentTransfers()) {
+                s3DataManager.setAgentS3ClientConfig(awsClientFactory.getAgentS3ClientConfig());
             }
-
-            S3DataManager s3DataManager = new S3DataManager(awsClientFactory.getS3Client(), sourceS3Bucket, sourceS3Key, getParameterized(sseAlgorithm), getParameterized(localSourcePath), getParameterized(workspaceSubdir), getParameterized(workspaceIncludes), getParameterized(workspaceExcludes));
+            s3DataManager.setUploadPartSize(descriptor.getUploadPartSize() * 1024L * 1024L);
+            s3DataManager.setUploadThreads(descriptor.getUploadThreads());
+            s3DataManager.setStreamUpload(descriptor.isStreamSourceUpload());
+            s3DataManager.setSourceUploadCache(SourceUploadCache.getInstance());
             String uploadedSourceVersion = "";
 
+            // The upload can outlast the idle timeout of the shared S3 client.
+            AWSClientCache.lease(s3Client);
             try {
                 UploadToS3Output uploadToS3Output = s3DataManager.uploadSourceToS3(listener, ws);
+                if(!CodeBuildMetadataCache.getValue(bucketIsVersioned)) {
+                    failBuild(build, listener, notVersionsedS3BucketError, "");
+                    return false;
+                }
                 // Override source version to object version id returned by S3
                 if(uploadToS3Output.getObjectVersionId() != null) {
                     uploadedSourceVersion = uploadToS3Output.getObjectVersionId();
                 } else {
+                    // Versioning was suspended since it was looked up.
+                    CodeBuildMetadataCache.invalidateBucket(awsClientFactory.getClientKey(), sourceS3Bucket);
                     failBuild(build, listener, notVersionsedS3BucketError, "");
-                    return;
+                    return false;
                 }
                 LoggingHelper.log(listener, "S3 object version id for uploaded source is " + uploadedSourceVersion);
             } catch (Exception e) {
+                // The project may have moved its source, or the bucket may be gone: look them up again next time.
+                CodeBuildMetadataCache.invalidateProject(awsClientFactory.getClientKey(), getParameterized(projectName));
+                CodeBuildMetadataCache.invalidateBucket(awsClientFactory.getClientKey(), sourceS3Bucket);
                 failBuild(build, listener, "Error when uploading source to S3: ", e.getMessage());
-                return;
+                return false;
+            } finally {
+                AWSClientCache.release(s3Client);
             }
 
             startBuildRequest.setSourceVersion(uploadedSourceVersion);
@@ -469,117 +542,147 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             sbResult = cbClient.startBuild(startBuildRequest);
         } catch (Exception e) {
             failBuild(build, listener, "Error when calling CodeBuild StartBuild: ", e.getMessage());
-            return;
+            return false;
         }
 
-        Build currentBuild = new Build().withBuildStatus(StatusType.IN_PROGRESS);
-        String buildId = sbResult.getBuild().getId();
+        currentBuild = new Build().withBuildStatus(StatusType.IN_PROGRESS);
+        buildId = sbResult.getBuild().getId();
         LoggingHelper.log(listener, "Build id: " + buildId);
         LoggingHelper.log(listener, "CodeBuild dashboard: " + generateDashboardURL(buildId));
 
-        boolean haveInitializedAction = false;
-        CodeBuildAction action = null;
-        CloudWatchMonitor logMonitor = null;
+        // The status of this build is fetched together with the other builds sharing these credentials and region.
+        statusPoller = BuildStatusPoller.getInstance(awsClientFactory.getClientKey());
+        statusPoller.register(buildId);
 
-        //poll buildResult for build status until it's complete.
-        do {
-            try {
-                List<Build> buildsForId = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(buildId)).getBuilds();
+        // With a notification queue configured, a state change event for this build ends the wait before the next poll.
+        eventListener = BuildEventListener.getInstance(descriptor.getNotificationQueueUrl());
+        if(eventListener != null) {
+            eventListener.register(buildId);
+        }
+        return true;
+    }
 
-                if(buildsForId.size() != 1) {
-                    throw new Exception("Multiple builds mapped to this build id.");
-                }
+    // Runs the given callback when a state change event arrives for the started build.
+    // @return: false if no notification queue is configured, so the build is only polled.
+    public boolean setBuildEventCallback(final Runnable onEvent) {
+        if(eventListener == null) {
+            return false;
+        }
+        eventListener.register(buildId, new Runnable() {
+            @Override
+            public void run() {
+                // The status cached for this build is from before the event.
+                statusPoller.markStale(buildId);
+                onEvent.run();
+            }
+        });
+        return true;
+    }
 
-                currentBuild = buildsForId.get(0);
-                if(!haveInitializedAction) {
-                    logMonitor = new CloudWatchMonitor(awsClientFactory.getCloudWatchLogsClient(), Boolean.parseBoolean(getParameterized(cwlStreamingDisabled)));
-                    action = new CodeBuildAction(build);
-
-                    //only need to set these once, the others will need to be updated below as the build progresses.
-                    String buildARN = currentBuild.getArn();
-                    codeBuildResult.setBuildInformation(currentBuild.getId(), buildARN);
-
-                    action.setBuildId(buildId);
-                    action.setBuildARN(buildARN);
-                    action.setStartTime(currentBuild.getStartTime().toString());
-
-                    ProjectSource source = currentBuild.getSource();
-                    if(source != null) {
-                        action.setSourceType(source.getType());
-                        action.setSourceLocation(source.getLocation());
-
-                        if(currentBuild.getSourceVersion() == null) {
-                            action.setSourceVersion("");
-                        } else {
-                            action.setSourceVersion(currentBuild.getSourceVersion());
-                        }
+    // Fetches the latest status of the started build and updates the dashboard and the logs.
+    // @return: true while the build is still in progress.
+    public boolean pollBuild(@Nonnull Run<?, ?> build, @Nonnull TaskListener listener) throws Exception {
+        // The clients are shared with other builds: getting them on every poll keeps them from being evicted as idle
+        // while this build runs, even when it sends no requests.
+        cbClient = awsClientFactory.getCodeBuildClient();
+        currentBuild = statusPoller.getBuild(cbClient, buildId);
+        if(action != null) {
+            logMonitor.setLogsClient(awsClientFactory.getCloudWatchLogsClient());
+        } else {
+            logMonitor = new CloudWatchMonitor(awsClientFactory.getCloudWatchLogsClient(), Boolean.parseBoolean(getParameterized(cwlStreamingDisabled)));
+            action = new CodeBuildAction(build);
 
-                        Integer depth = source.getGitCloneDepth();
-                        if(depth == null || depth == 0) {
-                            action.setGitCloneDepth("Full");
-                        } else {
-                            action.setGitCloneDepth(String.valueOf(depth));
-                        }
+            //only need to set these once, the others will need to be updated below as the build progresses.
+            String buildARN = currentBuild.getArn();
+            codeBuildResult.setBuildInformation(currentBuild.getId(), buildARN);
 
-                        Boolean status = source.getReportBuildStatus();
-                        if(status != null) {
-                            action.setReportBuildStatus(String.valueOf(status));
-                        }
-                    }
+            action.setBuildId(buildId);
+            action.setBuildARN(buildARN);
+            action.setStartTime(currentBuild.getStartTime().toString());
 
-                    action.setArtifactTypeOverride(getParameterized(artifactTypeOverride));
-                    action.setCodeBuildDashboardURL(generateDashboardURL(buildId));
-                    action.setLogs(new ArrayList());
-                    action.setCloudWatchLogsURL("");
-                    action.setS3LogsURL("");
+            ProjectSource source = currentBuild.getSource();
+            if(source != null) {
+                action.setSourceType(source.getType());
+                action.setSourceLocation(source.getLocation());
 
-                    build.addAction(action);
-                    haveInitializedAction = true;
+                if(currentBuild.getSourceVersion() == null) {
+                    action.setSourceVersion("");
+                } else {
+                    action.setSourceVersion(currentBuild.getSourceVersion());
                 }
 
-                updateDashboard(currentBuild, action, logMonitor, listener);
-                Thread.sleep(getSleepTime(descriptor));
-            } catch(Exception e) {
-                if(e.getClass().equals(InterruptedException.class)) {
-                    //Request to stop Jenkins build has been made. First make sure the build is stoppable
-                    List<Build> buildsForId = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(buildId)).getBuilds();
-                    currentBuild = buildsForId.get(0);
-                    if(!currentBuild.getCurrentPhase().equals(BuildPhaseType.COMPLETED.toString())) {
-                        cbClient.stopBuild(new StopBuildRequest().withId(buildId));
-                        //Wait for the build to actually stop
-                        do {
-                            buildsForId = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(buildId)).getBuilds();
-                            currentBuild = buildsForId.get(0);
-                            Thread.sleep(5000L);
-                            logMonitor.pollForLogs(listener);
-                            updateDashboard(currentBuild, action, logMonitor, listener);
-                        } while (!currentBuild.getCurrentPhase().equals(BuildPhaseType.COMPLETED.toString()));
-                    }
-                    if (action != null) {
-                        action.setJenkinsBuildSucceeds(false);
-                    }
-                    this.codeBuildResult.setStopped();
-                    build.setResult(Result.ABORTED);
-                    return;
-                } else if(e.getMessage().contains(CodeBuildClientRetryCondition.HTTP_ERROR_MESSAGE)) {
-                    Thread.sleep(getSleepTime(descriptor));
-                    continue;
+                Integer depth = source.getGitCloneDepth();
+                if(depth == null || depth == 0) {
+                    action.setGitCloneDepth("Full");
                 } else {
-                    if (action != null) {
-                        action.setJenkinsBuildSucceeds(false);
-                    }
-                    failBuild(build, listener, "Error while polling build: ", e.getMessage());
-                    return;
+                    action.setGitCloneDepth(String.valueOf(depth));
+                }
+
+                Boolean status = source.getReportBuildStatus();
+                if(status != null) {
+                    action.setReportBuildStatus(String.valueOf(status));
                 }
             }
-        } while(currentBuild.getBuildStatus().equals(StatusType.IN_PROGRESS.toString()));
+
+            action.setArtifactTypeOverride(getParameterized(artifactTypeOverride));
+            action.setCodeBuildDashboardURL(generateDashboardURL(buildId));
+            action.setLogs(new ArrayList());
+            action.setCloudWatchLogsURL("");
+            action.setS3LogsURL("");
+
+            build.addAction(action);
+        }
+
+        updateDashboard(currentBuild, action, logMonitor, listener);
+        return isBuildInProgress();
+    }
+
+    // Handles an error thrown by pollBuild.
+    // @return: true if polling should continue, false if the Jenkins build has been failed.
+    public boolean handlePollingError(@Nonnull Run<?, ?> build, @Nonnull TaskListener listener, Exception e) throws AbortException {
+        if(e.getMessage() != null && e.getMessage().contains(CodeBuildClientRetryCondition.HTTP_ERROR_MESSAGE)) {
+            return true;
+        }
+        if (action != null) {
+            action.setJenkinsBuildSucceeds(false);
+        }
+        failBuild(build, listener, "Error while polling build: ", e.getMessage());
+        return false;
+    }
+
+    // Stops the CodeBuild build if it is still running, waits for it to complete and marks the Jenkins build as aborted.
+    public void stopBuild(@Nonnull Run<?, ?> build, @Nonnull TaskListener listener) throws InterruptedException {
+        //First make sure the build is stoppable
+        List<Build> buildsForId = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(buildId)).getBuilds();
+        currentBuild = buildsForId.get(0);
+        if(!currentBuild.getCurrentPhase().equals(BuildPhaseType.COMPLETED.toString())) {
+            cbClient.stopBuild(new StopBuildRequest().withId(buildId));
+            //Wait for the build to actually stop
+            do {
+                buildsForId = cbClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(buildId)).getBuilds();
+                currentBuild = buildsForId.get(0);
+                Thread.sleep(5000L);
+                logMonitor.pollForLogs(listener);
+                updateDashboard(currentBuild, action, logMonitor, listener);
+            } while (!currentBuild.getCurrentPhase().equals(BuildPhaseType.COMPLETED.toString()));
+        }
+        if (action != null) {
+            action.setJenkinsBuildSucceeds(false);
+        }
+        this.codeBuildResult.setStopped();
+        build.setResult(Result.ABORTED);
+    }
+
+    // Downloads the artifacts of the completed build if requested and sets the Jenkins build result.
+    public void completeBuild(@Nonnull Run<?, ?> build, @Nonnull FilePath ws, @Nonnull TaskListener listener) throws AbortException {
+        PhaseDurationHistory.record(getPhaseHistoryKey(), currentBuild.getPhases());
 
         // Read artifacts location once the build is complete and artifact name finalized
         codeBuildResult.setArtifactsLocation(currentBuild.getArtifacts() != null ? currentBuild.getArtifacts().getLocation() : null);
 
         // Download build artifacts
         if(downloadArtifacts.equalsIgnoreCase(Boolean.TRUE.toString())) {
-            downloadArtifactsFromS3(listener, awsClientFactory.getS3Client(), currentBuild, this.getArtifactRoot(ws));
+            downloadArtifactsFromS3(listener, ws, currentBuild);
         }
         if(currentBuild.getBuildStatus().equals(StatusType.SUCCEEDED.toString().toUpperCase(Locale.ENGLISH))) {
             action.setJenkinsBuildSucceeds(true);
@@ -589,13 +692,72 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             action.setJenkinsBuildSucceeds(false);
             failBuild(build, listener, "Build " + currentBuild.getId() + " failed", action.getPhaseErrorMessage());
         }
-        return;
     }
 
-    private void downloadArtifactsFromS3(@Nonnull TaskListener listener, AmazonS3Client s3Client, Build build, String artifactRoot) {
+    // Stops sharing status polls for the started build. Safe to call more than once.
+    public void releaseBuild() {
+        if(statusPoller != null) {
+            statusPoller.unregister(buildId);
+        }
+        if(eventListener != null) {
+            eventListener.unregister(buildId);
+        }
+    }
+
+    public boolean isBuildStarted() {
+        return statusPoller != null && statusPoller.isRegistered(buildId);
+    }
+
+    public boolean isBuildInProgress() {
+        return currentBuild != null && currentBuild.getBuildStatus().equals(StatusType.IN_PROGRESS.toString());
+    }
+
+    // @return: the time in milliseconds to wait before polling the build status again.
+    // When build events are received, polling is only a fallback in case an event is lost, so the longest interval is used.
+    public long getPollingInterval() {
+        if(eventListener != null) {
+            return TimeUnit.SECONDS.toMillis(descriptor.getMaxSleepTime());
+        }
+        return getSleepTime(descriptor);
+    }
+
+    private void waitForNextPoll() throws InterruptedException {
+        if(eventListener != null) {
+            if(eventListener.awaitEvent(buildId, getPollingInterval())) {
+                // The status cached for this build is from before the event.
+                statusPoller.markStale(buildId);
+            }
+        } else {
+            Thread.sleep(getSleepTime(descriptor));
+        }
+    }
+
+    private void downloadArtifactsFromS3(@Nonnull TaskListener listener, FilePath ws, Build build) {
+        int downloadThreads = getDescriptor().getDownloadThreads();
+        boolean extract = Boolean.parseBoolean(getParameterized(extractArtifacts));
+        long rangeSize = getDescriptor().isResumableDownloads() ? RangedDownload.DEFAULT_RANGE_SIZE : 0;
         try {
-            S3Downloader s3Downloader = new S3Downloader(s3Client);
-            s3Downloader.downloadBuildArtifacts(listener, build, artifactRoot);
+            AgentS3ClientConfig agentS3ClientConfig = !getDescriptor().isAgentTransfers() || !ws.isRemote() ? null : awsClientFactory.getAgentS3ClientConfig();
+            if(agentS3ClientConfig != null) {
+                // Download on the machine the workspace is on, so the artifacts don't go through the controller.
+                new FilePath(ws.getChannel(), this.getArtifactRoot(ws)).act(new S3DownloadCallable(agentS3ClientConfig, listener, build, downloadThreads, extract, rangeSize));
+            } else {
+                AmazonS3Client s3Client = awsClientFactory.getS3Client();
+                S3Downloader s3Downloader = new S3Downloader(s3Client, awsClientFactory.getClientKey(), downloadThreads);
+                s3Downloader.setExtractArtifacts(extract);
+                s3Downloader.setRangeSize(rangeSize);
+                // The artifacts are read after their GetObject responses: keep the shared S3 client until they are.
+                AWSClientCache.lease(s3Client);
+                try {
+                    s3Downloader.downloadBuildArtifacts(listener, build, this.getArtifactRoot(ws));
+                } finally {
+                    s3Downloader.shutdown();
+                    AWSClientCache.release(s3Client);
+                }
+            }
+        } catch (InterruptedException e) {
+            LoggingHelper.log(listener, "Interrupted while downloading S3 build artifact");
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             LoggingHelper.log(listener, "Error while downloading S3 build artifact: " + e.getMessage());
         }
@@ -607,23 +769,50 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
     }
 
     private int getSleepTime(DescriptorImpl desc) {
-        // 5s + 1s per BatchGetBuilds call already made + jitter for concurrent builds
         int secondToMs = (int) TimeUnit.SECONDS.toMillis(1);
+        int jitter = ThreadLocalRandom.current().nextInt(secondToMs*desc.getSleepJitter());
+
+        BuildPhase phase = getCurrentBuildPhase();
+        if(phase != null && phase.getPhaseType() != null && !phase.getPhaseType().equals(pollingPhase)) {
+            pollingPhase = phase.getPhaseType();
+            batchGetBuildsCalls = 0;
+        }
+
+        // Poll when the current phase is expected to end, if the previous builds of the project tell when that is.
+        Long remainingTime = PhaseDurationHistory.getRemainingTime(getPhaseHistoryKey(), phase, System.currentTimeMillis());
+        if(remainingTime != null && remainingTime > 0) {
+            long sleepTimeInMs = Math.max(secondToMs*desc.getMinSleepTime(), Math.min(remainingTime, secondToMs*desc.getMaxSleepTime()));
+            return (int) sleepTimeInMs + jitter;
+        }
+
+        // Otherwise 5s + 1s per BatchGetBuilds call already made in this phase + jitter for concurrent builds
         int sleepTimeInMs = secondToMs*desc.getMinSleepTime() + secondToMs*batchGetBuildsCalls++;
-        return Math.min(sleepTimeInMs, secondToMs*desc.getMaxSleepTime()) + ThreadLocalRandom.current().nextInt(secondToMs*desc.getSleepJitter());
+        return Math.min(sleepTimeInMs, secondToMs*desc.getMaxSleepTime()) + jitter;
+    }
+
+    // @return: the latest phase of the build, or null if it isn't known yet.
+    private BuildPhase getCurrentBuildPhase() {
+        if(currentBuild == null || currentBuild.getPhases() == null || currentBuild.getPhases().isEmpty()) {
+            return null;
+        }
+        List<BuildPhase> phases = currentBuild.getPhases();
+        return phases.get(phases.size() - 1);
+    }
+
+    private String getPhaseHistoryKey() {
+        return (awsClientFactory == null ? "" : awsClientFactory.getClientKey()) + "|" + getParameterized(projectName);
     }
 
-    // Calls BatchGetProjects to get the source metadata for the configured project.
+    // Calls BatchGetProjects, or reuses a recent call, to get the source metadata for the configured project.
     // Validates that the project source type is S3 and returns the source location.
     // @param cbClient: the CodeBuild client used by this build.
-    private String retrieveProjectSourceInfo(AWSCodeBuildClient cbClient) throws RuntimeException, InvalidInputException {
-        BatchGetProjectsResult bgpResult = cbClient.batchGetProjects(
-                new BatchGetProjectsRequest().withNames(getParameterized(projectName)));
-        if(bgpResult.getProjects().isEmpty()) {
+    private String retrieveProjectSourceInfo(AWSCodeBuildClient cbClient) throws RuntimeException, InvalidInputException, InterruptedException {
+        ProjectSource projectSource = CodeBuildMetadataCache.getProjectSource(awsClientFactory.getClientKey(), getParameterized(projectName), cbClient);
+        if(projectSource == null) {
             throw new RuntimeException("Project " + getParameterized(projectName) + " does not exist.");
         } else {
-            String projectSourceLocation = bgpResult.getProjects().get(0).getSource().getLocation();
-            String projectSourceType = bgpResult.getProjects().get(0).getSource().getType();
+            String projectSourceLocation = projectSource.getLocation();
+            String projectSourceType = projectSource.getType();
             if(!CodeBuilderValidation.checkSourceTypeS3(projectSourceType)) {
                 throw new InvalidInputException(jenkinsSourceProjectSourceTypeError);
             }
@@ -815,6 +1004,9 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
         if(!downloadArtifactsRelativePath.isEmpty()) {
             message.append("\n\t> Download build artifacts relative path: " + getParameterized(downloadArtifactsRelativePath));
         }
+        if(!getParameterized(extractArtifacts).isEmpty()) {
+            message.append("\n\t> Extract zipped build artifacts: " + getParameterized(extractArtifacts));
+        }
         if(!buildSpecFile.isEmpty()) {
             message.append("\n\t> build spec: \n" + getParameterized(buildSpecFile));
         }
@@ -831,6 +1023,15 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
         return Integer.parseInt(depth);
     }
 
+    private int getSourceCompressionLevel() {
+        String level = getParameterized(compressionLevel).trim();
+        if(level.isEmpty()) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+
+        return Integer.parseInt(level);
+    }
+
     private ProjectArtifacts generateStartBuildArtifactOverride() {
         ProjectArtifacts artifacts = new ProjectArtifacts();
         boolean overridesSpecified = false;
@@ -1055,12 +1256,24 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
         private static final int DEFAULT_MIN_SLEEP_TIME = 3;
         private static final int DEFAULT_MAX_SLEEP_TIME = 60;
         private static final int DEFAULT_SLEEP_JITTER = 5;
+        private static final int DEFAULT_UPLOAD_PART_SIZE = 16;
+        private static final int MIN_UPLOAD_PART_SIZE = 5;
+        private static final int DEFAULT_UPLOAD_THREADS = 4;
         private static final int MAX_BUILD_DURATION = (int) TimeUnit.HOURS.toSeconds(8);
 
 
         private int minSleepTime;
         private int maxSleepTime;
         private int sleepJitter;
+        private String notificationQueueUrl;
+        private int zipThreads;
+        private boolean deterministicZip;
+        private int uploadPartSize;
+        private int uploadThreads;
+        private boolean streamSourceUpload;
+        private int downloadThreads;
+        private boolean resumableDownloads;
+        private boolean agentTransfers;
 
         public DescriptorImpl() {
             load();
@@ -1090,13 +1303,69 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
             }
         }
 
+        // @return: the URL of the SQS queue receiving CodeBuild state change events, or an empty string to only poll.
+        public String getNotificationQueueUrl() {
+            return notificationQueueUrl == null ? "" : notificationQueueUrl.trim();
+        }
+
+        // @return: the number of threads compressing Jenkins sources, 0 for one per processor of the agent.
+        public int getZipThreads() {
+            return Math.max(zipThreads, 0);
+        }
+
+        // @return: whether Jenkins sources are zipped with normalized timestamps and permissions, in a fixed order.
+        public boolean isDeterministicZip() {
+            return deterministicZip;
+        }
+
+        // @return: the size in MB of the parts of multipart source uploads.
+        public int getUploadPartSize() {
+            return uploadPartSize < MIN_UPLOAD_PART_SIZE ? DEFAULT_UPLOAD_PART_SIZE : uploadPartSize;
+        }
+
+        // @return: the number of parts of a source upload sent concurrently.
+        public int getUploadThreads() {
+            return uploadThreads <= 0 ? DEFAULT_UPLOAD_THREADS : uploadThreads;
+        }
+
+        // @return: whether Jenkins sources are zipped straight into S3 from the agent, without a zip file on disk.
+        public boolean isStreamSourceUpload() {
+            return streamSourceUpload;
+        }
+
+        // @return: the number of files, or parts of files, of build artifacts downloaded concurrently.
+        public int getDownloadThreads() {
+            return downloadThreads <= 0 ? S3Downloader.DEFAULT_MAX_CONCURRENT_DOWNLOADS : downloadThreads;
+        }
+
+        // @return: whether zipped build artifacts are downloaded in ranges that resume after failures.
+        public boolean isResumableDownloads() {
+            return resumableDownloads;
+        }
+
+        // @return: whether sources are uploaded and artifacts downloaded on the agent the workspace is on, which sends
+        // the job's AWS credentials to the agent. The controller's own credentials are never sent.
+        public boolean isAgentTransfers() {
+            return agentTransfers;
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             req.bindJSON(this, formData);
             this.minSleepTime = formData.optInt("minSleepTime", 0);
             this.maxSleepTime = formData.optInt("maxSleepTime", 0);
             this.sleepJitter = formData.optInt("sleepJitter", 0);
+            this.notificationQueueUrl = formData.optString("notificationQueueUrl", "");
+            this.zipThreads = formData.optInt("zipThreads", 0);
+            this.deterministicZip = formData.optBoolean("deterministicZip", false);
+            this.uploadPartSize = formData.optInt("uploadPartSize", 0);
+            this.uploadThreads = formData.optInt("uploadThreads", 0);
+            this.streamSourceUpload = formData.optBoolean("streamSourceUpload", false);
+            this.downloadThreads = formData.optInt("downloadThreads", 0);
+            this.resumableDownloads = formData.optBoolean("resumableDownloads", false);
+            this.agentTransfers = formData.optBoolean("agentTransfers", false);
             save();
+            BuildEventListener.getInstance(getNotificationQueueUrl());
             return super.configure(req, formData);
         }
 
@@ -1264,30 +1533,7 @@ public class CodeBuilder extends Builder implements SimpleBuildStep {
         public ListBoxModel doFillCredentialsIdItems() {
             final ListBoxModel selections = new ListBoxModel();
 
-            SystemCredentialsProvider s = SystemCredentialsProvider.getInstance();
-            Set<String> displayCredentials = new HashSet<>();
-
-            for (Credentials c: s.getCredentials()) {
-                if (c instanceof CodeBuildBaseCredentials) {
-                    displayCredentials.add(((CodeBuildBaseCredentials) c).getId());
-                }
-            }
-
-            Jenkins instance = Jenkins.getInstance();
-            if(instance != null) {
-                List<Folder> folders = instance.getAllItems(Folder.class);
-                for(Folder folder: folders) {
-                    List<Credentials> creds = CredentialsProvider.lookupCredentials(Credentials.class, (Item) folder);
-                    for(Credentials cred: creds) {
-                        if (cred instanceof CodeBuildBaseCredentials) {
-                            displayCredentials.add(((CodeBuildBaseCredentials) cred).getId());
-                        }
-                    }
-                }
-            }
-
-
-            for(String credString: displayCredentials) {
+            for(String credString: CredentialsIndex.getCredentialsIds()) {
                 selections.add(credString);
             }
 
@@ -31,6 +31,7 @@ public class CodeBuilderValidation {
     public static final String invalidArtifactsPackagingError = "Artifact packaging override must be one of 'NONE', 'ZIP', ''";
     public static final String invalidArtifactNamespaceTypeError = "Artifact namespace override must be one of 'NONE', 'BUILD_ID', ''";
     public static final String invalidTimeoutOverrideError = "Build timeout override must be a number between 5 and 480 (minutes)";
+    public static final String invalidCompressionLevelError = "Compression level must be a number between 0 (no compression) and 9";
     public static final String invalidRegionError = "Enter a valid AWS region";
     public static final String invalidProxyError = "Enter a valid proxy host and port (greater than zero)";
     public static final String invalidCredentialsIdError = "Invalid credentials ID. Verify that the credentials are of type CodeBuildCredentials and are accessible in this project.";
@@ -169,6 +170,19 @@ public class CodeBuilderValidation {
             }
         }
 
+        String compressionLevel = cb.getParameterized(cb.compressionLevel);
+        if(!compressionLevel.isEmpty()) {
+            int level;
+            try {
+                level = Integer.parseInt(compressionLevel.trim());
+            } catch(NumberFormatException e) {
+                return invalidCompressionLevelError;
+            }
+            if(level < 0 || level > 9) {
+                return invalidCompressionLevelError;
+            }
+        }
+
         return "";
     }
 
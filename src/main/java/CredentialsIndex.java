@@ -0,0 +1,304 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials;
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Remembers which CodeBuild credentials an id resolves to, globally or from a folder, so that starting a build doesn't
+// scan every credential of the system and folder stores.
+// The index is cleared whenever the system credentials or a folder (and so its credentials) are saved. Entries also
+// expire after TTL, for credentials from stores that don't save through Jenkins.
+// It also keeps the ids of the CodeBuild credentials of every scope (the system store and each folder) for the
+// credentials dropdowns. They are collected in the background once the jobs are loaded. The ids of a folder include the
+// credentials it inherits from its parents and the system store, so a folder that is saved, moved or deleted is
+// scanned again with the folders inside it, and every scope is scanned again when the system credentials are saved.
+// CodeBuild credentials that are no longer in any scope after a scan have been replaced or removed: they are released,
+// which shuts down their STS client.
+public class CredentialsIndex {
+
+    static final long TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // Incremented on every change, so that a lookup that started before a change isn't added after it.
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final String SYSTEM_SCOPE = "";
+    // scope -> CodeBuild credentials available in it. Scopes are SYSTEM_SCOPE or the full name of a folder.
+    private static final Map<String, List<CodeBuildBaseCredentials>> credentialsByScope = new ConcurrentHashMap<>();
+    private static volatile boolean idsIndexed;
+    private static final ExecutorService updater = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "CodeBuild credentials index"));
+
+    // @return: the credentials with the given id in the system store, or null if there are none.
+    public static CodeBuildBaseCredentials getSystemCredentials(final String credentialsId) {
+        return get("system|" + credentialsId, new Lookup() {
+            @Override
+            public CodeBuildBaseCredentials find() {
+                return (CodeBuildBaseCredentials) CredentialsMatchers.firstOrNull(SystemCredentialsProvider.getInstance().getCredentials(),
+                        CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId)));
+            }
+        });
+    }
+
+    // @return: the credentials with the given id available to the given folder, or null if there are none.
+    public static CodeBuildBaseCredentials getFolderCredentials(final String folderName, final String credentialsId) {
+        return get("folder|" + folderName + "|" + credentialsId, new Lookup() {
+            @Override
+            public CodeBuildBaseCredentials find() {
+                Jenkins instance = Jenkins.getInstance();
+                if(instance == null) {
+                    return null;
+                }
+                Item folder = instance.getItemByFullName(folderName);
+                return (CodeBuildBaseCredentials) CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(Credentials.class, folder),
+                        CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId)));
+            }
+        });
+    }
+
+    public static void invalidate() {
+        generation.incrementAndGet();
+        index.clear();
+    }
+
+    // @return: the sorted ids of all the CodeBuild credentials, in the system store and in every folder.
+    public static Set<String> getCredentialsIds() {
+        if(!idsIndexed) {
+            indexAllIds();
+        }
+        Set<String> ids = new TreeSet<>();
+        for(List<CodeBuildBaseCredentials> scopeCredentials: credentialsByScope.values()) {
+            for(CodeBuildBaseCredentials c: scopeCredentials) {
+                ids.add(c.getId());
+            }
+        }
+        return ids;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void indexAtStartup() {
+        updater.submit(new Runnable() {
+            @Override
+            public void run() {
+                indexAllIds();
+            }
+        });
+    }
+
+    private static synchronized void indexAllIds() {
+        if(idsIndexed) {
+            return;
+        }
+        reindexAllIds();
+        idsIndexed = true;
+    }
+
+    private static void reindexAllIds() {
+        indexSystemIds();
+        Jenkins instance = Jenkins.getInstance();
+        if(instance != null) {
+            for(AbstractFolder<?> folder: instance.getAllItems(AbstractFolder.class)) {
+                indexFolderIds(folder);
+            }
+        }
+    }
+
+    // Scans the given folder and the folders inside it.
+    private static void reindexFolderIds(AbstractFolder<?> folder) {
+        indexFolderIds(folder);
+        for(AbstractFolder<?> child: Items.getAllItems(folder, AbstractFolder.class)) {
+            indexFolderIds(child);
+        }
+    }
+
+    private static void indexSystemIds() {
+        credentialsByScope.put(SYSTEM_SCOPE, getCodeBuildCredentials(SystemCredentialsProvider.getInstance().getCredentials()));
+    }
+
+    private static void indexFolderIds(AbstractFolder<?> folder) {
+        credentialsByScope.put(folder.getFullName(), getCodeBuildCredentials(CredentialsProvider.lookupCredentials(Credentials.class, (Item) folder)));
+    }
+
+    private static List<CodeBuildBaseCredentials> getCodeBuildCredentials(List<Credentials> credentials) {
+        List<CodeBuildBaseCredentials> codeBuildCredentials = new ArrayList<>();
+        for(Credentials c: credentials) {
+            if(c instanceof CodeBuildBaseCredentials) {
+                codeBuildCredentials.add((CodeBuildBaseCredentials) c);
+            }
+        }
+        return codeBuildCredentials;
+    }
+
+    // Credentials are compared by identity: a replaced credential has the same id as the one replacing it.
+    private static Set<CodeBuildBaseCredentials> getIndexedCredentials() {
+        Set<CodeBuildBaseCredentials> indexed = Collections.newSetFromMap(new IdentityHashMap<CodeBuildBaseCredentials, Boolean>());
+        for(List<CodeBuildBaseCredentials> scopeCredentials: credentialsByScope.values()) {
+            indexed.addAll(scopeCredentials);
+        }
+        return indexed;
+    }
+
+    // Forgets the ids of the given folder and of the folders inside it.
+    private static void removeFolderIds(String fullName) {
+        Iterator<String> it = credentialsByScope.keySet().iterator();
+        while(it.hasNext()) {
+            String scope = it.next();
+            if(scope.equals(fullName) || scope.startsWith(fullName + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    // Applies the given update to the index, then releases the credentials it dropped.
+    private static void update(final Runnable update) {
+        updater.submit(new Runnable() {
+            @Override
+            public void run() {
+                Set<CodeBuildBaseCredentials> previous = getIndexedCredentials();
+                update.run();
+                previous.removeAll(getIndexedCredentials());
+                for(CodeBuildBaseCredentials c: previous) {
+                    c.release();
+                }
+            }
+        });
+    }
+
+    // Waits for the updates submitted so far to be applied.
+    static void awaitUpdates() throws InterruptedException, ExecutionException {
+        updater.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static CodeBuildBaseCredentials get(String key, Lookup lookup) {
+        long now = System.currentTimeMillis();
+        Entry entry = index.get(key);
+        if(entry != null && now - entry.loadedAt < TTL) {
+            return entry.credentials;
+        }
+
+        long lookupGeneration = generation.get();
+        CodeBuildBaseCredentials credentials = lookup.find();
+        // Missing credentials aren't remembered: they are looked up again once they have been added.
+        if(credentials != null) {
+            index.put(key, new Entry(credentials, now));
+            if(generation.get() != lookupGeneration) {
+                index.remove(key);
+            }
+        }
+        return credentials;
+    }
+
+    private interface Lookup {
+        CodeBuildBaseCredentials find();
+    }
+
+    private static class Entry {
+        private final CodeBuildBaseCredentials credentials;
+        private final long loadedAt;
+
+        Entry(CodeBuildBaseCredentials credentials, long loadedAt) {
+            this.credentials = credentials;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    @Extension
+    public static class CredentialsChangeListener extends SaveableListener {
+        @Override
+        public void onChange(final Saveable o, XmlFile file) {
+            if(o instanceof SystemCredentialsProvider || o instanceof AbstractFolder) {
+                invalidate();
+            }
+            if(o instanceof SystemCredentialsProvider) {
+                update(new Runnable() {
+                    @Override
+                    public void run() {
+                        reindexAllIds();
+                    }
+                });
+            } else if(o instanceof AbstractFolder) {
+                update(new Runnable() {
+                    @Override
+                    public void run() {
+                        reindexFolderIds((AbstractFolder<?>) o);
+                    }
+                });
+            }
+        }
+    }
+
+    @Extension
+    public static class FolderListener extends ItemListener {
+        @Override
+        public void onDeleted(final Item item) {
+            if(item instanceof AbstractFolder) {
+                invalidate();
+                update(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeFolderIds(item.getFullName());
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onLocationChanged(final Item item, final String oldFullName, String newFullName) {
+            if(item instanceof AbstractFolder) {
+                invalidate();
+                update(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeFolderIds(oldFullName);
+                        reindexFolderIds((AbstractFolder<?>) item);
+                    }
+                });
+            }
+        }
+    }
+}
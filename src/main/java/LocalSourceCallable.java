@@ -17,11 +17,18 @@
 import hudson.FilePath;
 import hudson.remoting.VirtualChannel;
 import jenkins.MasterToSlaveFileCallable;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import lombok.RequiredArgsConstructor;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 @RequiredArgsConstructor
 public class LocalSourceCallable extends MasterToSlaveFileCallable<String> {
@@ -29,10 +36,15 @@ public class LocalSourceCallable extends MasterToSlaveFileCallable<String> {
     private final FilePath workspace;
     private final String remoteFile;
 
+    // Copies the source file and hashes it in the same pass.
     @Override
     public String invoke(File localFile, VirtualChannel channel) throws IOException {
         File remoteSource = new File(workspace.child(remoteFile).getRemote());
-        FileUtils.copyFile(remoteSource, localFile);
-        return S3DataManager.getZipMD5(localFile);
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        try(InputStream in = new FileInputStream(remoteSource);
+            OutputStream out = new DigestOutputStream(new FileOutputStream(localFile), md5)) {
+            IOUtils.copyLarge(in, out);
+        }
+        return S3DataManager.encodeMD5(md5.digest());
     }
 }
@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+// Uploads everything written to it to S3 without knowing the size in advance.
+// Bytes are collected into part-sized buffers, and every full buffer is uploaded as a part of a multipart upload while
+// the next one is being written. At most uploadThreads parts are in flight, and writes block until one of them is done,
+// so the memory used is bounded by (uploadThreads + 1) * partSize.
+// Content shorter than one part is sent with a single PutObject instead.
+// Closing the stream doesn't finish the upload: call complete() once everything is written, or abort() on failure.
+public class MultipartUploadOutputStream extends OutputStream {
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final boolean sseEnabled;
+    private final int partSize;
+    private final ExecutorService executorService;
+    private final Semaphore partsInFlight;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int count;
+    private String uploadId;
+    private boolean closed;
+
+    public MultipartUploadOutputStream(AmazonS3 s3Client, String bucket, String key, boolean sseEnabled, long partSize, int uploadThreads) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.sseEnabled = sseEnabled;
+        this.partSize = (int) Math.min(Math.max(partSize, S3UploadCallable.MIN_PART_SIZE), Integer.MAX_VALUE);
+        this.executorService = Executors.newFixedThreadPool(Math.max(uploadThreads, 1));
+        this.partsInFlight = new Semaphore(Math.max(uploadThreads, 1));
+        this.buffer = new byte[this.partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        while(len > 0) {
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if(count == buffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    // Uploads what is left in the buffer and completes the upload.
+    // @return: the version id of the uploaded object.
+    public String complete() throws IOException, InterruptedException {
+        closed = true;
+        try {
+            if(uploadId == null) {
+                ObjectMetadata objectMetadata = newObjectMetadata();
+                objectMetadata.setContentLength(count);
+                objectMetadata.setContentMD5(md5(buffer, count));
+                return s3Client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, count), objectMetadata)).getVersionId();
+            }
+
+            if(count > 0) {
+                uploadPart();
+            }
+            List<PartETag> partETags = new ArrayList<>();
+            for(Future<PartETag> part: parts) {
+                partETags.add(part.get());
+            }
+            return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getVersionId();
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Failed to upload source to S3: " + e.getCause().getMessage(), e.getCause());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // Discards the parts uploaded so far.
+    public void abort() {
+        closed = true;
+        executorService.shutdownNow();
+        if(uploadId != null) {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            uploadId = null;
+        }
+    }
+
+    private ObjectMetadata newObjectMetadata() {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if(sseEnabled) {
+            objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+        return objectMetadata;
+    }
+
+    private void uploadPart() throws IOException {
+        checkFailedParts();
+        if(parts.size() >= S3UploadCallable.MAX_PARTS) {
+            throw new IOException("Source is too large to be uploaded in " + S3UploadCallable.MAX_PARTS + " parts of " + partSize + " bytes");
+        }
+        if(uploadId == null) {
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, newObjectMetadata())).getUploadId();
+        }
+
+        try {
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading source to S3");
+        }
+        parts.add(executorService.submit(new PartUpload(parts.size() + 1, buffer, count)));
+        buffer = new byte[partSize];
+        count = 0;
+    }
+
+    private static String md5(byte[] data, int size) {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        md5.update(data, 0, size);
+        return S3DataManager.encodeMD5(md5.digest());
+    }
+
+    // Fails the write as soon as a part has failed, rather than once the whole source is written.
+    private void checkFailedParts() throws IOException {
+        for(Future<PartETag> part: parts) {
+            if(!part.isDone()) {
+                continue;
+            }
+            try {
+                part.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to upload source to S3: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading source to S3");
+            }
+        }
+    }
+
+    private class PartUpload implements Callable<PartETag> {
+        private final int partNumber;
+        private final byte[] data;
+        private final int size;
+
+        PartUpload(int partNumber, byte[] data, int size) {
+            this.partNumber = partNumber;
+            this.data = data;
+            this.size = size;
+        }
+
+        @Override
+        public PartETag call() throws IOException {
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(data, 0, size))
+                        .withPartSize(size)
+                        .withMD5Digest(md5(data, size));
+                return s3Client.uploadPart(request).getPartETag();
+            } finally {
+                partsInFlight.release();
+            }
+        }
+    }
+}
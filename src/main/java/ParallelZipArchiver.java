@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import hudson.util.IOUtils;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+// Builds a zip archive whose entries are compressed concurrently.
+// Each entry is compressed by one of the worker threads into its own buffer (in memory, or in a temporary file once it
+// grows past IN_MEMORY_THRESHOLD), and the compressed entries are copied into the archive in the order they were
+// visited while the following ones are still being compressed, so the result is a standard zip file.
+// Same usage as hudson.util.io.Archiver: visit every directory and file, then close.
+// Files with one of the stored extensions are stored without compression, and so is any file that deflating doesn't
+// make smaller, so no time is spent decompressing them later either.
+// In deterministic mode every entry gets the same timestamp and only the executable bit of the permissions is kept,
+// so visiting the same files with the same contents in the same order always produces the same bytes.
+public class ParallelZipArchiver implements Closeable {
+
+    static final int IN_MEMORY_THRESHOLD = 1024 * 1024;
+    // Entries compressed ahead of the one being written, per thread.
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+
+    private final ZipArchiveOutputStream zip;
+    private final ExecutorService executorService;
+    private final int maxPendingEntries;
+    private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+    private final boolean deterministic;
+    private final int compressionLevel;
+    private final Set<String> storedExtensions;
+    // The earliest time a zip entry can hold. Zip timestamps are stored in local time, so this is 1980-01-01 00:00
+    // in the archive whatever the time zone of the agent.
+    private final long deterministicTime = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+    // @param threads: the number of threads deflating entries, or 0 to use one per available processor.
+    public ParallelZipArchiver(OutputStream out, int threads) {
+        this(out, threads, false);
+    }
+
+    public ParallelZipArchiver(OutputStream out, int threads, boolean deterministic) {
+        this(out, threads, deterministic, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    // @param compressionLevel: the deflate level from 0 (store everything) to 9, or -1 for the default level.
+    // @param storedExtensions: comma separated extensions of files that are stored without compression, such as "jar,*.png".
+    public ParallelZipArchiver(OutputStream out, int threads, boolean deterministic, int compressionLevel, String storedExtensions) {
+        this.zip = new ZipArchiveOutputStream(out);
+        this.zip.setEncoding("UTF-8");
+        int threadCount = getThreadCount(threads);
+        this.executorService = Executors.newFixedThreadPool(threadCount);
+        this.maxPendingEntries = threadCount * PENDING_ENTRIES_PER_THREAD;
+        this.deterministic = deterministic;
+        this.compressionLevel = compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION ? Deflater.DEFAULT_COMPRESSION : compressionLevel;
+        this.storedExtensions = parseExtensions(storedExtensions);
+    }
+
+    public static int getThreadCount(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    // @return: the lower case extensions, without their leading "*." or ".".
+    static Set<String> parseExtensions(String extensions) {
+        Set<String> result = new HashSet<>();
+        if(extensions == null) {
+            return result;
+        }
+        for(String extension: extensions.split("[,\\s]+")) {
+            extension = extension.trim();
+            if(extension.startsWith("*")) {
+                extension = extension.substring(1);
+            }
+            if(extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if(!extension.isEmpty()) {
+                result.add(extension.toLowerCase(Locale.ENGLISH));
+            }
+        }
+        return result;
+    }
+
+    // Adds the given file or directory to the archive under the given path relative to the archive root.
+    public void visit(final File f, String relativePath) throws IOException {
+        // Zip entries always use '/', whatever the platform the archive is created on.
+        String name = relativePath.replace('\\', '/');
+        boolean directory = f.isDirectory();
+        ZipArchiveEntry entry = new ZipArchiveEntry(directory ? name + "/" : name);
+
+        int mode = IOUtils.mode(f);
+        if(deterministic) {
+            entry.setTime(deterministicTime);
+            entry.setUnixMode(getDeterministicMode(directory, mode));
+        } else {
+            entry.setTime(f.lastModified());
+            if(mode != -1) {
+                entry.setUnixMode(mode);
+            }
+        }
+
+        boolean deflate = !directory && compressionLevel != Deflater.NO_COMPRESSION && !isStored(name);
+        pending.add(executorService.submit(new EntryCompressor(entry, directory ? null : f, deflate)));
+        while(pending.size() > maxPendingEntries) {
+            writeNext();
+        }
+    }
+
+    private boolean isStored(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && dot > name.lastIndexOf('/') && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    // @return: 755 for directories and executable files, 644 for other files.
+    private static int getDeterministicMode(boolean directory, int mode) {
+        if(directory) {
+            return UnixStat.DIR_FLAG | UnixStat.DEFAULT_DIR_PERM;
+        }
+        boolean executable = mode != -1 && (mode & 0100) != 0;
+        return UnixStat.FILE_FLAG | (executable ? 0755 : UnixStat.DEFAULT_FILE_PERM);
+    }
+
+    // Waits for the oldest entry to be compressed and writes it to the archive.
+    private void writeNext() throws IOException {
+        CompressedEntry compressed;
+        try {
+            compressed = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing source", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress source: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        try(InputStream in = compressed.open()) {
+            zip.addRawArchiveEntry(compressed.entry, in);
+        } finally {
+            compressed.delete();
+        }
+    }
+
+    // Waits for every entry to be compressed, writes them to the archive and closes it.
+    @Override
+    public void close() throws IOException {
+        try {
+            while(!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            executorService.shutdownNow();
+            discardPending();
+            zip.close();
+        }
+    }
+
+    // Deletes the buffers of the entries that won't be written because writing an earlier one failed.
+    private void discardPending() {
+        for(Future<CompressedEntry> future: pending) {
+            try {
+                if(future.isDone()) {
+                    future.get().delete();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Nothing was buffered.
+            }
+        }
+        pending.clear();
+    }
+
+    private static class CompressedEntry {
+        private final ZipArchiveEntry entry;
+        private final DeferredFileOutputStream data;
+
+        CompressedEntry(ZipArchiveEntry entry, DeferredFileOutputStream data) {
+            this.entry = entry;
+            this.data = data;
+        }
+
+        InputStream open() throws IOException {
+            return data.isInMemory() ? new ByteArrayInputStream(data.getData()) : new FileInputStream(data.getFile());
+        }
+
+        void delete() {
+            File file = data.getFile();
+            if(file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private class EntryCompressor implements Callable<CompressedEntry> {
+        private final ZipArchiveEntry entry;
+        private final File f;      // null for directories
+        private final boolean deflate;
+
+        EntryCompressor(ZipArchiveEntry entry, File f, boolean deflate) {
+            this.entry = entry;
+            this.f = f;
+            this.deflate = deflate;
+        }
+
+        @Override
+        public CompressedEntry call() throws IOException {
+            if(deflate) {
+                DeferredFileOutputStream data = newBuffer();
+                CRC32 crc = new CRC32();
+                Deflater deflater = new Deflater(compressionLevel, true);
+                long size;
+                try {
+                    try(InputStream in = new CheckedInputStream(new FileInputStream(f), crc);
+                        OutputStream out = new DeflaterOutputStream(data, deflater)) {
+                        IOUtils.copyLarge(in, out);
+                    }
+                    size = deflater.getBytesRead();
+                } finally {
+                    deflater.end();
+                }
+
+                if(data.getByteCount() < size) {
+                    entry.setMethod(ZipEntry.DEFLATED);
+                    entry.setSize(size);
+                    entry.setCompressedSize(data.getByteCount());
+                    entry.setCrc(crc.getValue());
+                    return new CompressedEntry(entry, data);
+                }
+                // Deflating didn't help: store the file instead.
+                new CompressedEntry(entry, data).delete();
+            }
+            return store();
+        }
+
+        private CompressedEntry store() throws IOException {
+            DeferredFileOutputStream data = newBuffer();
+            CRC32 crc = new CRC32();
+            if(f != null) {
+                try(InputStream in = new CheckedInputStream(new FileInputStream(f), crc)) {
+                    IOUtils.copyLarge(in, data);
+                }
+            }
+            data.close();
+
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.getByteCount());
+            entry.setCompressedSize(data.getByteCount());
+            entry.setCrc(crc.getValue());
+            return new CompressedEntry(entry, data);
+        }
+
+        private DeferredFileOutputStream newBuffer() {
+            return new DeferredFileOutputStream(IN_MEMORY_THRESHOLD, "codebuild-zip", ".tmp", null);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.codebuild.model.BuildPhase;
+import com.amazonaws.services.codebuild.model.StatusType;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Remembers how long the phases of the builds of each project usually take, so that a running build is polled again
+// around the time its current phase is expected to end instead of on a fixed schedule.
+// The expected duration of a phase is a moving average of the successful phases of the previous builds, which follows
+// changes of the project within a few builds. Only the MAX_ENTRIES most recently used project phases are kept.
+public class PhaseDurationHistory {
+
+    static final int MAX_ENTRIES = 1000;
+    // Weight of the latest duration in the average.
+    static final double WEIGHT = 0.3;
+
+    private static final Map<String, Long> expectedDurations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Adds the durations of the successful phases of a build to the history of its project.
+    // @param key: identifies the project, with the credentials identity and region it is in.
+    public static synchronized void record(String key, List<BuildPhase> phases) {
+        if(phases == null) {
+            return;
+        }
+        for(BuildPhase phase: phases) {
+            if(phase.getPhaseType() == null || phase.getDurationInSeconds() == null
+                    || !StatusType.SUCCEEDED.toString().equals(phase.getPhaseStatus())) {
+                continue;
+            }
+            long duration = TimeUnit.SECONDS.toMillis(phase.getDurationInSeconds());
+            String phaseKey = key + "|" + phase.getPhaseType();
+            Long expected = expectedDurations.get(phaseKey);
+            expectedDurations.put(phaseKey, expected == null ? duration : Math.round(WEIGHT * duration + (1 - WEIGHT) * expected));
+        }
+    }
+
+    // @return: the time in milliseconds until the given phase is expected to end, which is negative once it's late,
+    // or null if it's not known how long the phase takes or it has already ended.
+    public static synchronized Long getRemainingTime(String key, BuildPhase phase, long now) {
+        if(phase == null || phase.getPhaseType() == null || phase.getEndTime() != null) {
+            return null;
+        }
+        Long expected = expectedDurations.get(key + "|" + phase.getPhaseType());
+        if(expected == null) {
+            return null;
+        }
+        // The phase start time comes from CodeBuild: don't let a clock ahead of ours make the phase look younger.
+        long elapsed = phase.getStartTime() == null ? 0 : Math.max(0, now - phase.getStartTime().getTime());
+        return expected - elapsed;
+    }
+
+    static synchronized void clear() {
+        expectedDurations.clear();
+    }
+}
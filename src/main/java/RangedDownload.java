@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Downloads an S3 object in byte ranges fetched concurrently into a part file next to the target file.
+// Every completed range is recorded in a ranges file, so a download that failed or was interrupted resumes from the
+// ranges it is missing, as long as the object hasn't changed since (same length and ETag). A failed range is retried
+// MAX_ATTEMPTS times before the download fails. Once every range is there, the part file is verified against the
+// expected SHA-256 and renamed to the target file, so the target file is either missing or complete.
+// start() only submits the ranges to the executor and waitForCompletion() does the rest on the calling thread, so the
+// executor threads never wait for each other.
+public class RangedDownload {
+
+    public static final long DEFAULT_RANGE_SIZE = 16L * 1024 * 1024;
+    public static final String PART_SUFFIX = ".part";
+    public static final String RANGES_SUFFIX = ".ranges";
+    public static final String sha256MismatchError = "SHA-256 checksum of the downloaded artifact doesn't match: ";
+    public static final String objectChangedError = "Artifact changed in S3 while it was being downloaded: ";
+
+    static final int MAX_ATTEMPTS = 3;
+    static long retryDelay = 1000L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final File file;
+    private final File partFile;
+    private final File rangesFile;
+    private final String sha256sum;
+    private final long rangeSize;
+    private final Executor executor;
+
+    private final List<Future<Void>> rangeDownloads = new ArrayList<>();
+    private FileChannel channel;
+    private Writer rangesWriter;
+    private long contentLength;
+    private int resumedRanges;
+
+    // @param sha256sum: the expected hex SHA-256 of the object, or null to skip the check.
+    // @param executor: runs the range downloads, or null to download them one after the other on the calling thread.
+    public RangedDownload(AmazonS3 s3Client, String bucket, String key, File file, String sha256sum, long rangeSize, Executor executor) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.file = file;
+        this.partFile = new File(file.getPath() + PART_SUFFIX);
+        this.rangesFile = new File(partFile.getPath() + RANGES_SUFFIX);
+        this.sha256sum = sha256sum;
+        this.rangeSize = rangeSize > 0 ? rangeSize : DEFAULT_RANGE_SIZE;
+        this.executor = executor;
+    }
+
+    // Submits the download of every range that isn't in the part file yet.
+    public synchronized void start() throws IOException {
+        ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+        contentLength = metadata.getContentLength();
+        String eTag = metadata.getETag();
+        String header = contentLength + " " + eTag;
+
+        int rangeCount = (int) ((contentLength + rangeSize - 1) / rangeSize);
+        BitSet completed = readCompletedRanges(header);
+        try {
+            if(completed == null) {
+                // Nothing to resume: start over.
+                completed = new BitSet(rangeCount);
+                Files.deleteIfExists(partFile.toPath());
+                Files.deleteIfExists(rangesFile.toPath());
+                rangesWriter = new OutputStreamWriter(new FileOutputStream(rangesFile), StandardCharsets.UTF_8);
+                rangesWriter.write(header + "\n");
+                rangesWriter.flush();
+            } else {
+                resumedRanges = completed.cardinality();
+                rangesWriter = new OutputStreamWriter(new FileOutputStream(rangesFile, true), StandardCharsets.UTF_8);
+            }
+
+            RandomAccessFile part = new RandomAccessFile(partFile, "rw");
+            // Closing the channel closes the file too.
+            channel = part.getChannel();
+            part.setLength(contentLength);
+
+            for(int range = completed.nextClearBit(0); range < rangeCount; range = completed.nextClearBit(range + 1)) {
+                FutureTask<Void> rangeDownload = new FutureTask<>(new RangeDownloader(range, eTag));
+                if(executor != null) {
+                    executor.execute(rangeDownload);
+                } else {
+                    rangeDownload.run();
+                }
+                rangeDownloads.add(rangeDownload);
+            }
+        } catch (IOException | RuntimeException e) {
+            // waitForCompletion() won't be called: stop the ranges already submitted and release the files here.
+            for(Future<Void> rangeDownload: rangeDownloads) {
+                rangeDownload.cancel(true);
+            }
+            try {
+                close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+    }
+
+    // Waits for every range, then verifies the part file and renames it to the target file.
+    // On failure the part file is kept for the next attempt to resume from, unless its checksum didn't match.
+    public void waitForCompletion() throws IOException, InterruptedException {
+        try {
+            Throwable failure = null;
+            for(Future<Void> rangeDownload: rangeDownloads) {
+                try {
+                    rangeDownload.get();
+                } catch (ExecutionException e) {
+                    if(failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if(failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if(failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if(failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        } catch (InterruptedException e) {
+            for(Future<Void> rangeDownload: rangeDownloads) {
+                rangeDownload.cancel(true);
+            }
+            throw e;
+        } finally {
+            close();
+        }
+
+        if(sha256sum != null && !sha256sum.isEmpty()) {
+            String actual;
+            try(InputStream in = new FileInputStream(partFile)) {
+                actual = DigestUtils.sha256Hex(in);
+            }
+            if(!sha256sum.equalsIgnoreCase(actual)) {
+                // The ranges on disk can't be trusted: don't resume from them.
+                Files.deleteIfExists(partFile.toPath());
+                Files.deleteIfExists(rangesFile.toPath());
+                throw new IOException(sha256MismatchError + "expected " + sha256sum + " but was " + actual);
+            }
+        }
+
+        try {
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(rangesFile.toPath());
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    // @return: the number of ranges found in the part file when the download started.
+    public int getResumedRanges() {
+        return resumedRanges;
+    }
+
+    private synchronized void close() throws IOException {
+        try {
+            if(channel != null) {
+                channel.close();
+            }
+        } finally {
+            if(rangesWriter != null) {
+                rangesWriter.close();
+            }
+        }
+    }
+
+    // @return: the ranges already downloaded, or null if there is no part file to resume from or the object changed.
+    private BitSet readCompletedRanges(String header) throws IOException {
+        if(!partFile.isFile() || !rangesFile.isFile()) {
+            return null;
+        }
+        BitSet completed = new BitSet();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rangesFile), StandardCharsets.UTF_8))) {
+            if(!header.equals(reader.readLine())) {
+                return null;
+            }
+            String line;
+            while((line = reader.readLine()) != null) {
+                try {
+                    completed.set(Integer.parseInt(line.trim()));
+                } catch (NumberFormatException e) {
+                    // A line cut short when the previous download stopped: that range is downloaded again.
+                }
+            }
+        }
+        return completed;
+    }
+
+    private synchronized void rangeCompleted(int range) throws IOException {
+        // The range must be on disk before it is recorded, or a crash could leave a hole that is never filled.
+        channel.force(false);
+        rangesWriter.write(range + "\n");
+        rangesWriter.flush();
+    }
+
+    private class RangeDownloader implements Callable<Void> {
+        private final int range;
+        private final String eTag;
+
+        RangeDownloader(int range, String eTag) {
+            this.range = range;
+            this.eTag = eTag;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            for(int attempt = 1; ; attempt++) {
+                try {
+                    download();
+                    rangeCompleted(range);
+                    return null;
+                } catch (AmazonClientException | IOException e) {
+                    if(attempt >= MAX_ATTEMPTS || e.getMessage() != null && e.getMessage().startsWith(objectChangedError)) {
+                        throw e;
+                    }
+                    Thread.sleep(retryDelay * attempt);
+                }
+            }
+        }
+
+        private void download() throws IOException {
+            long start = range * rangeSize;
+            long end = Math.min(start + rangeSize, contentLength) - 1;
+            // Only download the range from the object the other ranges come from.
+            GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end);
+            if(eTag != null) {
+                request.setMatchingETagConstraints(Collections.singletonList(eTag));
+            }
+            S3Object object = s3Client.getObject(request);
+            if(object == null) {
+                throw new IOException(objectChangedError + bucket + "/" + key);
+            }
+
+            long position = start;
+            try(InputStream in = object.getObjectContent()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while(position <= end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end + 1 - position))) != -1) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while(data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                }
+            }
+            if(position != end + 1) {
+                throw new IOException("Range " + start + "-" + end + " of " + bucket + "/" + key + " ended after " + (position - start) + " bytes");
+            }
+        }
+    }
+}
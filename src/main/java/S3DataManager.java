@@ -14,14 +14,18 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import hudson.FilePath;
 import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import org.apache.commons.codec.Charsets;
 import org.apache.commons.codec.digest.DigestUtils;
 
@@ -30,6 +34,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 import static org.apache.commons.codec.binary.Base64.encodeBase64;
 
@@ -44,6 +49,19 @@ public class S3DataManager {
     private final String workspaceSubdir;
     private final String workspaceIncludes;
     private final String workspaceExcludes;
+    // The number of threads compressing the workspace, 0 for one per processor of the agent.
+    @Setter private int zipThreads;
+    @Setter private boolean deterministicZip;
+    @Setter private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    @Setter private String storedExtensions;
+    // When set, the source is uploaded from the agent with these credentials; otherwise it is uploaded through s3Client.
+    @Setter private AgentS3ClientConfig agentS3ClientConfig;
+    @Setter private long uploadPartSize = S3UploadCallable.MIN_PART_SIZE;
+    @Setter private int uploadThreads = 1;
+    // When set along with agentS3ClientConfig, directories are zipped straight into S3 without a zip file on disk.
+    @Setter private boolean streamUpload;
+    // When set, the upload is skipped if the same source was already uploaded to the same location.
+    @Setter private SourceUploadCache sourceUploadCache;
 
     public S3DataManager(AmazonS3Client s3Client, String s3InputBucket, String s3InputKey, String sseAlgorithm, String localSourcePath, String workspaceSubdir) {
         this(s3Client, s3InputBucket, s3InputKey, sseAlgorithm, localSourcePath, workspaceSubdir, null, null);
@@ -54,6 +72,53 @@ public class S3DataManager {
     public UploadToS3Output uploadSourceToS3(TaskListener listener, FilePath workspace) throws Exception {
         CodeBuilderValidation.checkS3SourceUploaderConfig(workspace, s3Client, localSourcePath, workspaceSubdir);
 
+        String sourceFingerprint = null;
+        if(sourceUploadCache != null) {
+            sourceFingerprint = getSourceFingerprint(workspace);
+            String cachedVersionId = sourceUploadCache.get(s3InputBucket, s3InputKey, sourceFingerprint);
+            if(cachedVersionId != null && isUploaded(cachedVersionId)) {
+                LoggingHelper.log(listener, "Source is unchanged since it was uploaded to S3 at location " + s3InputBucket + "/" + s3InputKey + " as version " + cachedVersionId + ". Skipping upload.");
+                return new UploadToS3Output(s3InputBucket + "/" + s3InputKey, cachedVersionId);
+            }
+            sourceUploadCache.remove(s3InputBucket, s3InputKey, sourceFingerprint);
+        }
+
+        UploadToS3Output output = uploadSource(listener, workspace);
+        if(sourceUploadCache != null && output.getObjectVersionId() != null) {
+            sourceUploadCache.put(s3InputBucket, s3InputKey, sourceFingerprint, output.getObjectVersionId());
+        }
+        return output;
+    }
+
+    // Fingerprints the source on the machine the workspace is on, keeping the file hashes in the workspace's @tmp
+    // directory so the next fingerprint only reads the files that changed. The encryption setting is part of the fingerprint,
+    // since an object version uploaded without it can't stand in for one that requires it.
+    private String getSourceFingerprint(FilePath workspace) throws IOException, InterruptedException {
+        FilePath source;
+        if(localSourcePath != null && !localSourcePath.isEmpty()) {
+            source = workspace.child(localSourcePath);
+        } else if(workspaceSubdir != null && !workspaceSubdir.isEmpty()) {
+            source = workspace.child(workspaceSubdir);
+        } else {
+            source = workspace;
+        }
+        FilePath tempDir = WorkspaceList.tempDir(workspace);
+        String indexPath = tempDir == null ? null : tempDir.child(SourceHashIndex.FILE_NAME).getRemote();
+        String fingerprint = source.act(new SourceFingerprintCallable(workspaceIncludes, workspaceExcludes, indexPath));
+        return fingerprint + (sseAlgorithm != null && !sseAlgorithm.isEmpty() ? ":" + ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION : "");
+    }
+
+    // Checks with a HEAD request that the given version of the source object still exists.
+    private boolean isUploaded(String versionId) {
+        try {
+            s3Client.getObjectMetadata(new GetObjectMetadataRequest(s3InputBucket, s3InputKey, versionId));
+            return true;
+        } catch (AmazonServiceException e) {
+            return false;
+        }
+    }
+
+    private UploadToS3Output uploadSource(TaskListener listener, FilePath workspace) throws Exception {
         FilePath localFile;
         String zipFileMD5;
         ObjectMetadata objectMetadata = new ObjectMetadata();
@@ -69,10 +134,13 @@ public class S3DataManager {
                 workspace = workspace.child(workspaceSubdir);
             }
             String sourcePath = workspace.getRemote();
+            if(streamUpload && agentS3ClientConfig != null) {
+                return streamSource(listener, workspace);
+            }
             LoggingHelper.log(listener, "Zipping directory to upload to S3: " + sourcePath);
 
             localFile = new FilePath(workspace, getTempFilePath(sourcePath));
-            zipFileMD5 = localFile.act(new ZipSourceCallable(workspace, workspaceIncludes, workspaceExcludes));
+            zipFileMD5 = localFile.act(newZipSourceCallable(workspace));
         }
 
         // Add MD5 checksum as S3 Object metadata
@@ -85,6 +153,19 @@ public class S3DataManager {
         PutObjectRequest putObjectRequest;
         PutObjectResult putObjectResult = new PutObjectResult();
 
+        if(agentS3ClientConfig != null) {
+            // Upload from the machine the workspace is on, so the source doesn't go through the controller.
+            LoggingHelper.log(listener, "Uploading to S3 at location " + s3InputBucket + "/" + s3InputKey + ". MD5 checksum is " + zipFileMD5);
+            try {
+                String versionId = localFile.act(new S3UploadCallable(agentS3ClientConfig, s3InputBucket, s3InputKey, zipFileMD5,
+                        objectMetadata.getSSEAlgorithm() != null, uploadPartSize, uploadThreads));
+                putObjectResult.setVersionId(versionId);
+            } finally {
+                deleteQuietly(listener, localFile);
+            }
+            return new UploadToS3Output(s3InputBucket + "/" + s3InputKey, putObjectResult.getVersionId());
+        }
+
         try(InputStream zipFileInputStream = localFile.read()) {
             putObjectRequest = new PutObjectRequest(s3InputBucket, s3InputKey, zipFileInputStream, objectMetadata);
             LoggingHelper.log(listener, "Uploading to S3 at location " + putObjectRequest.getBucketName() + "/" + putObjectRequest.getKey() + ". MD5 checksum is " + zipFileMD5);
@@ -93,13 +174,29 @@ public class S3DataManager {
             LoggingHelper.log(listener, "Unexpected exception upon uploading source zip to S3: " + e.getMessage());
         }
 
+        deleteQuietly(listener, localFile);
+
+        return new UploadToS3Output(s3InputBucket + "/" + s3InputKey, putObjectResult.getVersionId());
+    }
+
+    private UploadToS3Output streamSource(TaskListener listener, FilePath sourceDirectory) throws IOException, InterruptedException {
+        LoggingHelper.log(listener, "Zipping directory " + sourceDirectory.getRemote() + " and streaming it to S3 at location " + s3InputBucket + "/" + s3InputKey);
+        boolean sseEnabled = sseAlgorithm != null && !sseAlgorithm.isEmpty();
+        String versionId = sourceDirectory.act(new S3StreamingUploadCallable(agentS3ClientConfig, s3InputBucket, s3InputKey, sseEnabled,
+                uploadPartSize, uploadThreads, newZipSourceCallable(sourceDirectory)));
+        return new UploadToS3Output(s3InputBucket + "/" + s3InputKey, versionId);
+    }
+
+    private ZipSourceCallable newZipSourceCallable(FilePath sourceDirectory) {
+        return new ZipSourceCallable(sourceDirectory, workspaceIncludes, workspaceExcludes, zipThreads, deterministicZip, compressionLevel, storedExtensions);
+    }
+
+    private void deleteQuietly(TaskListener listener, FilePath localFile) throws InterruptedException {
         try {
             localFile.delete();
         } catch (IOException e) {
             LoggingHelper.log(listener, "Unexpected exception upon deleting source file: " + e.getMessage());
         }
-
-        return new UploadToS3Output(s3InputBucket + "/" + s3InputKey, putObjectResult.getVersionId());
     }
 
     private String getTempFilePath(String filePath) {
@@ -107,6 +204,13 @@ public class S3DataManager {
     }
 
     public static String getZipMD5(File zipFile) throws IOException {
-        return new String(encodeBase64(DigestUtils.md5(new FileInputStream(zipFile))), Charsets.UTF_8);
+        try(InputStream in = new FileInputStream(zipFile)) {
+            return encodeMD5(DigestUtils.md5(in));
+        }
+    }
+
+    // Encodes an MD5 digest the way S3 expects it in Content-MD5.
+    public static String encodeMD5(byte[] md5) {
+        return new String(encodeBase64(md5), Charsets.UTF_8);
     }
 }
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.codebuild.model.Build;
+import com.amazonaws.services.s3.AmazonS3Client;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+
+// Downloads the artifacts of a build into the directory it is invoked on, from the machine that directory is on,
+// so the artifacts go from S3 to the agent without going through the controller.
+public class S3DownloadCallable extends MasterToSlaveFileCallable<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AgentS3ClientConfig clientConfig;
+    private final TaskListener listener;
+    private final Build build;
+    private final int maxConcurrentDownloads;
+    private final boolean extractArtifacts;
+    private final long rangeSize;
+
+    public S3DownloadCallable(AgentS3ClientConfig clientConfig, TaskListener listener, Build build, int maxConcurrentDownloads) {
+        this(clientConfig, listener, build, maxConcurrentDownloads, false, 0);
+    }
+
+    // @param extractArtifacts: whether zipped artifacts are extracted as they are downloaded instead of saved as zip files.
+    // @param rangeSize: the size of the ranges zipped artifacts are downloaded in, or 0 to download them in one go.
+    public S3DownloadCallable(AgentS3ClientConfig clientConfig, TaskListener listener, Build build, int maxConcurrentDownloads, boolean extractArtifacts,
+                              long rangeSize) {
+        this.clientConfig = clientConfig;
+        this.listener = listener;
+        this.build = build;
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+        this.extractArtifacts = extractArtifacts;
+        this.rangeSize = rangeSize;
+    }
+
+    @Override
+    public Void invoke(File artifactRoot, VirtualChannel channel) {
+        AmazonS3Client s3Client = clientConfig.createClient();
+        // The transfer threads are shared with the other builds downloading on this agent through the same endpoint.
+        String clientKey = clientConfig.getEndpoint() + "|" + clientConfig.getProxyHost() + ":" + clientConfig.getProxyPort();
+        S3Downloader s3Downloader = new S3Downloader(s3Client, clientKey, maxConcurrentDownloads);
+        s3Downloader.setExtractArtifacts(extractArtifacts);
+        s3Downloader.setRangeSize(rangeSize);
+        try {
+            s3Downloader.downloadBuildArtifacts(listener, build, artifactRoot.getPath());
+        } finally {
+            s3Downloader.shutdown();
+            s3Client.shutdown();
+        }
+        return null;
+    }
+}
@@ -14,28 +14,80 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
-import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.codebuild.model.Build;
 import com.amazonaws.services.codebuild.model.BuildArtifacts;
 import com.amazonaws.services.codebuild.model.InvalidInputException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.transfer.Transfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.google.common.annotations.VisibleForTesting;
 import hudson.model.TaskListener;
+import lombok.Setter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Downloads the primary and secondary artifacts of a build.
+// All the artifact transfers are started at once on the same TransferManager, whose thread pool caps how many files
+// (or parts of files) are downloaded concurrently, so a build with many artifacts downloads them in about the time of
+// the largest one. Progress is reported for all of them together.
+// The thread pool is a TransferPool shared with the other builds using the same S3 client configuration; call
+// shutdown() once the downloads are done to release the TransferManager without stopping the shared pool.
+// With extractArtifacts set, zipped artifacts are extracted into the artifact root while they are downloaded instead
+// of being saved as zip files. With a range size set, zipped artifacts are downloaded as RangedDownloads instead,
+// which resume after failures and are verified against their SHA-256 before they appear.
 public class S3Downloader {
 
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 10;
+    // Minimum time between two progress messages.
+    private static final long PROGRESS_LOG_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
     private final AmazonS3Client s3Client;
     private TransferManager transferManager;
+    @Setter private boolean extractArtifacts;
+    // The size of the ranges zipped artifacts are downloaded in, or 0 to download them with the TransferManager.
+    @Setter private long rangeSize;
+    private TransferPool transferPool;
 
     public S3Downloader(AmazonS3Client s3Client) {
+        this(s3Client, null, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    // @param clientKey: identifies the S3 client configuration, see AWSClientFactory.getClientKey().
+    // @param maxConcurrentDownloads: the number of threads downloading artifacts for all the builds using that configuration.
+    public S3Downloader(AmazonS3Client s3Client, String clientKey, int maxConcurrentDownloads) {
         this.s3Client = s3Client;
-        transferManager = TransferManagerBuilder.standard().withS3Client(s3Client).build();
+        this.transferPool = TransferPool.getInstance(clientKey, maxConcurrentDownloads);
+        final ExecutorService executor = transferPool.getExecutor();
+        transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3Client)
+                .withExecutorFactory(new ExecutorFactory() {
+                    @Override
+                    public ExecutorService newExecutor() {
+                        return executor;
+                    }
+                })
+                .withShutDownThreadPools(false)
+                .build();
     }
 
     @VisibleForTesting
@@ -49,48 +101,224 @@ public class S3Downloader {
             throw new InvalidInputException(CodeBuilderValidation.buildInstanceRequiredError);
         }
 
-        // Download primary artifacts
-        download(listener, build.getArtifacts(), artifactRoot);
-
-        // Download secondary artifacts
+        List<BuildArtifacts> artifacts = new ArrayList<>();
+        artifacts.add(build.getArtifacts());
         if (build.getSecondaryArtifacts() != null) {
-            for (BuildArtifacts buildArtifact : build.getSecondaryArtifacts()) {
-                download(listener, buildArtifact, artifactRoot);
+            artifacts.addAll(build.getSecondaryArtifacts());
+        }
+
+        // Start every download before waiting for any of them.
+        List<Transfer> transfers = new CopyOnWriteArrayList<>();
+        List<Future<Integer>> extractions = new ArrayList<>();
+        List<RangedDownload> rangedDownloads = new ArrayList<>();
+        DownloadProgress progress = new DownloadProgress(listener, transfers);
+        for (BuildArtifacts buildArtifact : artifacts) {
+            if (extractArtifacts && isZipped(buildArtifact) && artifactRoot != null) {
+                extractions.add(extract(listener, buildArtifact, artifactRoot));
+                if (transferPool != null) {
+                    transferPool.transferStarted();
+                }
+                continue;
+            }
+            if (rangeSize > 0 && isZipped(buildArtifact) && artifactRoot != null) {
+                RangedDownload rangedDownload = downloadRanges(listener, buildArtifact, artifactRoot);
+                if (rangedDownload != null) {
+                    rangedDownloads.add(rangedDownload);
+                    if (transferPool != null) {
+                        transferPool.transferStarted();
+                    }
+                }
+                continue;
+            }
+            Transfer transfer = download(listener, buildArtifact, artifactRoot);
+            if (transfer != null) {
+                transfer.addProgressListener(progress);
+                transfers.add(transfer);
+                if (transferPool != null) {
+                    transferPool.transferStarted();
+                }
+            }
+        }
+
+        int started = transfers.size() + extractions.size() + rangedDownloads.size();
+        if (transferPool != null && started > 0) {
+            LoggingHelper.log(listener, transferPool.toString());
+        }
+
+        try {
+            for (Transfer transfer : transfers) {
+                try {
+                    transfer.waitForCompletion();
+                } catch (AmazonClientException e) {
+                    LoggingHelper.log(listener, "Download failed:" + e.getMessage());
+                }
+            }
+            for (Future<Integer> extraction : extractions) {
+                try {
+                    extraction.get();
+                } catch (ExecutionException e) {
+                    LoggingHelper.log(listener, "Download failed:" + e.getCause().getMessage());
+                }
+            }
+            for (RangedDownload rangedDownload : rangedDownloads) {
+                try {
+                    rangedDownload.waitForCompletion();
+                } catch (AmazonClientException | IOException e) {
+                    LoggingHelper.log(listener, "Download failed:" + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            LoggingHelper.log(listener, "Download failed:" + e.getMessage());
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            if (transferPool != null) {
+                for (int i = 0; i < started; i++) {
+                    transferPool.transferFinished();
+                }
+            }
+        }
+        if (transfers.size() > 1) {
+            LoggingHelper.log(listener, "Downloaded " + transfers.size() + " artifacts (" + progress.getBytesTransferred() + " bytes)");
+        }
+    }
+
+    private static boolean isZipped(BuildArtifacts buildArtifact) {
+        return buildArtifact != null
+                && buildArtifact.getLocation() != null
+                && !buildArtifact.getLocation().isEmpty()
+                && buildArtifact.getSha256sum() != null
+                && !buildArtifact.getSha256sum().isEmpty();
+    }
+
+    // Starts downloading the given zipped artifact in ranges, resuming a previous download of it if there is one.
+    // @return: the download, or null if it couldn't be started.
+    private RangedDownload downloadRanges(TaskListener listener, BuildArtifacts buildArtifact, String artifactRoot) {
+        String s3Bucket = Utils.getS3BucketFromObjectArn(buildArtifact.getLocation());
+        String keyPrefix = Utils.getS3KeyFromObjectArn(buildArtifact.getLocation());
+        File file = new File(artifactRoot + File.separatorChar + keyPrefix);
+        LoggingHelper.log(listener, "Downloading artifact from location '" + buildArtifact.getLocation() + "' to path:" + file.getAbsolutePath());
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+            }
+            RangedDownload rangedDownload = new RangedDownload(s3Client, s3Bucket, keyPrefix, file, buildArtifact.getSha256sum(), rangeSize,
+                    transferPool == null ? null : transferPool.getExecutor());
+            rangedDownload.start();
+            if (rangedDownload.getResumedRanges() > 0) {
+                LoggingHelper.log(listener, "Resuming download of '" + buildArtifact.getLocation() + "' after " + rangedDownload.getResumedRanges() + " ranges");
+            }
+            return rangedDownload;
+        } catch (AmazonClientException e) {
+            LoggingHelper.log(listener, "Download failed:" + e.getMessage());
+        } catch (IOException e) {
+            LoggingHelper.log(listener, e.getMessage());
+        }
+        return null;
+    }
+
+    // Starts extracting the given zipped artifact into the artifact root as it is downloaded, on the transfer threads
+    // when they are shared, or right away otherwise.
+    // @return: the number of files extracted.
+    private Future<Integer> extract(final TaskListener listener, final BuildArtifacts buildArtifact, final String artifactRoot) {
+        FutureTask<Integer> extraction = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                String s3Bucket = Utils.getS3BucketFromObjectArn(buildArtifact.getLocation());
+                String keyPrefix = Utils.getS3KeyFromObjectArn(buildArtifact.getLocation());
+                File destination = new File(artifactRoot);
+                LoggingHelper.log(listener, "Extracting artifact from location '" + buildArtifact.getLocation() + "' to path:" + destination.getAbsolutePath());
+
+                S3Object object = s3Client.getObject(s3Bucket, keyPrefix);
+                try (InputStream in = object.getObjectContent()) {
+                    int files = ZipArtifactExtractor.extract(in, destination, buildArtifact.getSha256sum());
+                    LoggingHelper.log(listener, "Extracted " + files + " files from artifact '" + buildArtifact.getLocation() + "' ("
+                            + object.getObjectMetadata().getContentLength() + " bytes), SHA-256 verified");
+                    return files;
+                }
             }
+        });
+        if (transferPool != null) {
+            transferPool.getExecutor().execute(extraction);
+        } else {
+            extraction.run();
         }
+        return extraction;
     }
 
-    private void download(TaskListener listener, BuildArtifacts buildArtifact, String artifactRoot) {
+    // Releases the TransferManager. The shared transfer threads and the S3 client are left running.
+    public void shutdown() {
+        transferManager.shutdownNow(false);
+    }
+
+    // Starts downloading the given artifact.
+    // @return: the transfer, or null if there is nothing to download or it couldn't be started.
+    private Transfer download(TaskListener listener, BuildArtifacts buildArtifact, String artifactRoot) {
         if (buildArtifact == null
                 || buildArtifact.getLocation() == null
                 || buildArtifact.getLocation().isEmpty()
                 || artifactRoot == null) {
-            return;
+            return null;
         }
 
         String s3Bucket = Utils.getS3BucketFromObjectArn(buildArtifact.getLocation());
         String keyPrefix = Utils.getS3KeyFromObjectArn(buildArtifact.getLocation());
-        Transfer transfer;
         try {
             if (buildArtifact.getSha256sum() != null && !buildArtifact.getSha256sum().isEmpty()) {
                 // Download single zip file
                 File file = new File(artifactRoot + File.separatorChar + keyPrefix);
                 LoggingHelper.log(listener, "Downloading artifact from location '" + buildArtifact.getLocation() + "' to path:" + file.getAbsolutePath());
                 Utils.ensureFileExists(file);
-                transfer = transferManager.download(s3Bucket, keyPrefix, file);
+                return transferManager.download(s3Bucket, keyPrefix, file);
             } else {
                 // Download entire directory content
                 File file = new File(artifactRoot);
                 LoggingHelper.log(listener, "Downloading artifact from location '" + buildArtifact.getLocation() + "' to path:" + file.getAbsolutePath());
-                transfer = transferManager.downloadDirectory(s3Bucket, keyPrefix, file);
+                return transferManager.downloadDirectory(s3Bucket, keyPrefix, file);
             }
-            transfer.waitForCompletion();
-        } catch (AmazonServiceException e) {
-            LoggingHelper.log(listener, "Download failed:" + e.getMessage());
-        } catch (InterruptedException e) {
+        } catch (AmazonClientException e) {
             LoggingHelper.log(listener, "Download failed:" + e.getMessage());
         } catch (IOException e) {
             LoggingHelper.log(listener, e.getMessage());
         }
+        return null;
+    }
+
+    // Adds up the bytes received by all the transfers and logs them every PROGRESS_LOG_INTERVAL.
+    private static class DownloadProgress implements ProgressListener {
+        private final TaskListener listener;
+        private final Collection<Transfer> transfers;
+        private final AtomicLong bytesTransferred = new AtomicLong();
+        private final AtomicLong lastLogTime = new AtomicLong(System.currentTimeMillis());
+
+        DownloadProgress(TaskListener listener, Collection<Transfer> transfers) {
+            this.listener = listener;
+            this.transfers = transfers;
+        }
+
+        long getBytesTransferred() {
+            return bytesTransferred.get();
+        }
+
+        @Override
+        public void progressChanged(ProgressEvent progressEvent) {
+            if (progressEvent.getEventType() != ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT) {
+                return;
+            }
+            long transferred = bytesTransferred.addAndGet(progressEvent.getBytesTransferred());
+            long now = System.currentTimeMillis();
+            long last = lastLogTime.get();
+            if (now - last < PROGRESS_LOG_INTERVAL || !lastLogTime.compareAndSet(last, now)) {
+                return;
+            }
+
+            long total = 0;
+            for (Transfer transfer : transfers) {
+                total += Math.max(transfer.getProgress().getTotalBytesToTransfer(), 0);
+            }
+            String percent = total > 0 ? " (" + Math.min(100, transferred * 100 / total) + "%)" : "";
+            LoggingHelper.log(listener, "Downloaded " + transferred + " of " + total + " bytes of build artifacts" + percent);
+        }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.s3.AmazonS3;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+
+// Zips a source directory straight into an S3 upload from the machine the directory is on, without writing the zip
+// to disk: the zip is written into a MultipartUploadOutputStream, which uploads it part by part as it is produced.
+// @return: the version id of the uploaded object.
+public class S3StreamingUploadCallable extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AgentS3ClientConfig clientConfig;
+    private final String bucket;
+    private final String key;
+    private final boolean sseEnabled;
+    private final long partSize;
+    private final int uploadThreads;
+    private final ZipSourceCallable zipSource;
+
+    // @param zipSource: zips the source directory this is invoked on, with the same settings as when the zip is written to a file.
+    public S3StreamingUploadCallable(AgentS3ClientConfig clientConfig, String bucket, String key, boolean sseEnabled, long partSize, int uploadThreads,
+                                     ZipSourceCallable zipSource) {
+        this.clientConfig = clientConfig;
+        this.bucket = bucket;
+        this.key = key;
+        this.sseEnabled = sseEnabled;
+        this.partSize = partSize;
+        this.uploadThreads = uploadThreads;
+        this.zipSource = zipSource;
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        AmazonS3 s3Client = clientConfig.createClient();
+        try {
+            return upload(s3Client);
+        } finally {
+            s3Client.shutdown();
+        }
+    }
+
+    protected String upload(AmazonS3 s3Client) throws IOException, InterruptedException {
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, bucket, key, sseEnabled, partSize, uploadThreads);
+        try {
+            zipSource.zipSourceWithArchiver(out);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        return out.complete();
+    }
+}
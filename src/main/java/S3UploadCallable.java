@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Uploads a file to S3 from the machine the file is on.
+// Files smaller than one part are sent with a single PutObject. Larger files are sent with a multipart upload
+// whose parts are uploaded concurrently, each with its own Content-MD5.
+// @return: the version id of the uploaded object.
+public class S3UploadCallable extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    // S3 limits for multipart uploads.
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    public static final int MAX_PARTS = 10000;
+
+    private final AgentS3ClientConfig clientConfig;
+    private final String bucket;
+    private final String key;
+    private final String contentMD5;
+    private final boolean sseEnabled;
+    private final long partSize;
+    private final int uploadThreads;
+
+    // @param contentMD5: the base64 MD5 of the whole file, checked by S3 when the file is sent with a single PutObject.
+    public S3UploadCallable(AgentS3ClientConfig clientConfig, String bucket, String key, String contentMD5, boolean sseEnabled, long partSize, int uploadThreads) {
+        this.clientConfig = clientConfig;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentMD5 = contentMD5;
+        this.sseEnabled = sseEnabled;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.uploadThreads = Math.max(uploadThreads, 1);
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        AmazonS3 s3Client = clientConfig.createClient();
+        try {
+            return upload(s3Client, f);
+        } finally {
+            s3Client.shutdown();
+        }
+    }
+
+    protected String upload(AmazonS3 s3Client, File f) throws IOException, InterruptedException {
+        long length = f.length();
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if(sseEnabled) {
+            objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+
+        if(length < partSize) {
+            objectMetadata.setContentMD5(contentMD5);
+            objectMetadata.setContentLength(length);
+            try(InputStream in = new FileInputStream(f)) {
+                return s3Client.putObject(new PutObjectRequest(bucket, key, in, objectMetadata)).getVersionId();
+            }
+        }
+
+        // Grow the parts if the file would need more than S3 allows.
+        long size = Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, objectMetadata)).getUploadId();
+        ExecutorService executorService = Executors.newFixedThreadPool(uploadThreads);
+        try {
+            List<Future<PartETag>> parts = new ArrayList<>();
+            int partNumber = 1;
+            for(long offset = 0; offset < length; offset += size) {
+                parts.add(executorService.submit(new PartUpload(s3Client, f, uploadId, partNumber++, offset, Math.min(size, length - offset))));
+            }
+
+            List<PartETag> partETags = new ArrayList<>();
+            for(Future<PartETag> part: parts) {
+                partETags.add(part.get());
+            }
+            return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getVersionId();
+        } catch (ExecutionException e) {
+            abort(s3Client, executorService, uploadId);
+            throw new IOException("Failed to upload " + f.getName() + " to S3: " + e.getCause().getMessage(), e.getCause());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            abort(s3Client, executorService, uploadId);
+            throw e;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // Discards the parts uploaded so far, so that the failed upload isn't left in the bucket.
+    private void abort(AmazonS3 s3Client, ExecutorService executorService, String uploadId) {
+        executorService.shutdownNow();
+        s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    }
+
+    private class PartUpload implements Callable<PartETag> {
+        private final AmazonS3 s3Client;
+        private final File f;
+        private final String uploadId;
+        private final int partNumber;
+        private final long offset;
+        private final long size;
+
+        PartUpload(AmazonS3 s3Client, File f, String uploadId, int partNumber, long offset, long size) {
+            this.s3Client = s3Client;
+            this.f = f;
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public PartETag call() throws IOException {
+            String partMD5;
+            try(InputStream in = new FileInputStream(f)) {
+                if(in.skip(offset) != offset) {
+                    throw new IOException("Failed to read part " + partNumber + " of " + f.getName());
+                }
+                partMD5 = S3DataManager.encodeMD5(DigestUtils.md5(new BoundedInputStream(in, size)));
+            }
+
+            UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withFile(f)
+                    .withFileOffset(offset)
+                    .withPartSize(size)
+                    .withMD5Digest(partMD5);
+            return s3Client.uploadPart(request).getPartETag();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Computes a fingerprint of the source that would be uploaded: the SHA-256 of the sorted list of the included
+// directories and files, with the size, unix mode and SHA-256 of every file. Two sources with the same fingerprint
+// produce archives with the same contents, so an upload of one can stand in for the other.
+// Invoked on the source directory, or on the file for a local source path. When given the path of a SourceHashIndex,
+// only the files whose size or modification time changed since the previous fingerprint are read.
+public class SourceFingerprintCallable extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String includes;
+    private final String excludes;
+    private final String indexPath;
+
+    public SourceFingerprintCallable(String includes, String excludes) {
+        this(includes, excludes, null);
+    }
+
+    // @param indexPath: the path of the SourceHashIndex on the agent, or null to hash every file.
+    public SourceFingerprintCallable(String includes, String excludes, String indexPath) {
+        this.includes = Util.fixNull(includes);
+        this.excludes = Util.fixNull(excludes);
+        this.indexPath = indexPath;
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException {
+        SourceHashIndex index = indexPath == null ? null : SourceHashIndex.load(new File(indexPath));
+        String fingerprint = fingerprint(f, index);
+        if(index != null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                // The index only saves work on the next fingerprint, so the fingerprint is still good without it.
+            }
+        }
+        return fingerprint;
+    }
+
+    private String fingerprint(File f, SourceHashIndex index) throws IOException {
+        MessageDigest fingerprint = DigestUtils.getSha256Digest();
+        if(!f.isDirectory()) {
+            addFile(fingerprint, f, f.getName(), index);
+            return Hex.encodeHexString(fingerprint.digest());
+        }
+
+        DirectoryScanner ds = ZipSourceCallable.scanSourceDirectory(f, includes, excludes);
+        String[] dirs = ds.getIncludedDirectories();
+        String[] files = ds.getIncludedFiles();
+        Arrays.sort(dirs);
+        Arrays.sort(files);
+        for(String dir: dirs) {
+            add(fingerprint, "D " + dir.replace('\\', '/') + "\n");
+        }
+        for(String file: files) {
+            addFile(fingerprint, new File(f, file), file.replace('\\', '/'), index);
+        }
+        return Hex.encodeHexString(fingerprint.digest());
+    }
+
+    private void addFile(MessageDigest fingerprint, File f, String path, SourceHashIndex index) throws IOException {
+        add(fingerprint, "F " + path + " " + f.length() + " " + IOUtils.mode(f) + " " + hash(f, index) + "\n");
+    }
+
+    private String hash(File f, SourceHashIndex index) throws IOException {
+        if(index != null) {
+            return index.hash(f);
+        }
+        try(InputStream in = new FileInputStream(f)) {
+            return DigestUtils.sha256Hex(in);
+        }
+    }
+
+    private void add(MessageDigest fingerprint, String entry) {
+        fingerprint.update(entry.getBytes(StandardCharsets.UTF_8));
+    }
+}
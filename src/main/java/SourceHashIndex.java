@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Remembers the size, modification time and SHA-256 of every file hashed in the previous scan of a source, so that
+// the next scan only has to read the files whose size or modification time changed.
+// The index lives on the agent next to the workspace (in its @tmp directory) and is rewritten after every scan with
+// just the files seen in that scan.
+public class SourceHashIndex {
+
+    public static final String FILE_NAME = "codebuild-source-index";
+
+    // Coarsest modification time resolution of the filesystems we may run on (FAT). A file modified this close to the
+    // scan could be modified again without its modification time changing, so its hash isn't remembered.
+    static final long MTIME_RESOLUTION = 2000L;
+
+    // An index entry is only trusted if its hash looks like one: 32 (MD5) or 64 (SHA-256) hex characters.
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-fA-F]{32}|[0-9a-fA-F]{64}");
+
+    private final File indexFile;
+    private final long scanStartTime;
+    private final Map<String, Entry> previous = new HashMap<>();
+    private final Map<String, Entry> current = new HashMap<>();
+
+    private SourceHashIndex(File indexFile, long scanStartTime) {
+        this.indexFile = indexFile;
+        this.scanStartTime = scanStartTime;
+    }
+
+    // Loads the index from the given file. A missing or unreadable index is treated as empty, and entries with an
+    // invalid hash are ignored.
+    public static SourceHashIndex load(File indexFile) {
+        SourceHashIndex index = new SourceHashIndex(indexFile, System.currentTimeMillis());
+        if(!indexFile.isFile()) {
+            return index;
+        }
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                // size \t mtime \t sha256 \t path
+                String[] fields = line.split("\t", 4);
+                if(fields.length != 4) {
+                    index.previous.clear();
+                    return index;
+                }
+                if(!HASH_PATTERN.matcher(fields[2]).matches()) {
+                    continue;
+                }
+                index.previous.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            index.previous.clear();
+        }
+        return index;
+    }
+
+    // @return: the SHA-256 of the file, read from the index if the file's size and modification time are unchanged.
+    public String hash(File f) throws IOException {
+        String path = f.getAbsolutePath();
+        long size = f.length();
+        long mtime = f.lastModified();
+
+        Entry entry = previous.get(path);
+        if(entry == null || entry.size != size || entry.mtime != mtime) {
+            try(InputStream in = new FileInputStream(f)) {
+                entry = new Entry(size, mtime, DigestUtils.sha256Hex(in));
+            }
+        }
+        if(mtime < scanStartTime - MTIME_RESOLUTION) {
+            current.put(path, entry);
+        }
+        return entry.sha256;
+    }
+
+    // Replaces the index file with the files hashed since it was loaded.
+    public void save() throws IOException {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+        }
+        // Concurrent builds of the same workspace may save at the same time, so each writes its own temporary file.
+        File tmp = File.createTempFile(FILE_NAME, ".tmp", dir);
+        try {
+            write(tmp);
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private void write(File file) throws IOException {
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for(Map.Entry<String, Entry> e: current.entrySet()) {
+                if(e.getKey().indexOf('\n') >= 0 || e.getKey().indexOf('\r') >= 0) {
+                    continue;
+                }
+                Entry entry = e.getValue();
+                writer.write(entry.size + "\t" + entry.mtime + "\t" + entry.sha256 + "\t" + e.getKey() + "\n");
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String sha256;
+
+        Entry(long size, long mtime, String sha256) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sha256 = sha256;
+        }
+    }
+}
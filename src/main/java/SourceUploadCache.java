@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the S3 object version each source fingerprint (see SourceFingerprintCallable) was uploaded as,
+// so that a source that hasn't changed since an earlier build can reuse that version instead of being uploaded again.
+// Only the most recently used MAX_ENTRIES uploads are kept.
+public class SourceUploadCache {
+
+    public static final int MAX_ENTRIES = 1000;
+
+    private static final SourceUploadCache instance = new SourceUploadCache();
+
+    private final Map<String, String> versionIds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public static SourceUploadCache getInstance() {
+        return instance;
+    }
+
+    // @return: the version id the source with the given fingerprint was uploaded as at bucket/key, or null.
+    public synchronized String get(String bucket, String key, String fingerprint) {
+        return versionIds.get(getCacheKey(bucket, key, fingerprint));
+    }
+
+    public synchronized void put(String bucket, String key, String fingerprint, String versionId) {
+        versionIds.put(getCacheKey(bucket, key, fingerprint), versionId);
+    }
+
+    public synchronized void remove(String bucket, String key, String fingerprint) {
+        versionIds.remove(getCacheKey(bucket, key, fingerprint));
+    }
+
+    private String getCacheKey(String bucket, String key, String fingerprint) {
+        return bucket + "/" + key + "#" + fingerprint;
+    }
+}
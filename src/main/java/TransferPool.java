@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The threads transferring build artifacts for all the builds that use the same S3 client configuration.
+// TransferManagers are created on top of the shared executor and don't own it, so shutting a TransferManager down
+// after its transfers leaves the pool running for the next build. Idle threads exit after IDLE_TIMEOUT, so a pool
+// that isn't used costs nothing, and every pool is shut down when Jenkins stops. A pool left without threads or
+// transfers for IDLE_TIMEOUT is dropped from the map, so client keys of credentials that are no longer used don't pile
+// up. It isn't shut down: a downloader still holding it can keep using it, and its threads exit on their own.
+public class TransferPool {
+
+    static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, TransferPool> pools = new HashMap<>();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicInteger completedTransfers = new AtomicInteger();
+    volatile long lastUsed = System.currentTimeMillis();
+
+    private TransferPool(int size) {
+        this.executor = new ThreadPoolExecutor(size, size, IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "CodeBuild S3 transfer"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Returns the pool shared by all transfers using the given client key (see AWSClientFactory.getClientKey()),
+    // resized to the given number of threads.
+    public static synchronized TransferPool getInstance(String clientKey, int size) {
+        String key = String.valueOf(clientKey);
+        size = Math.max(size, 1);
+        pruneIdlePools(key);
+        TransferPool pool = pools.get(key);
+        if(pool == null || pool.executor.isShutdown()) {
+            pool = new TransferPool(size);
+            pools.put(key, pool);
+        } else if(pool.executor.getMaximumPoolSize() != size) {
+            // Grow the maximum first, so the core size never exceeds it.
+            if(size > pool.executor.getMaximumPoolSize()) {
+                pool.executor.setMaximumPoolSize(size);
+                pool.executor.setCorePoolSize(size);
+            } else {
+                pool.executor.setCorePoolSize(size);
+                pool.executor.setMaximumPoolSize(size);
+            }
+        }
+        pool.lastUsed = System.currentTimeMillis();
+        return pool;
+    }
+
+    private static void pruneIdlePools(String keptKey) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, TransferPool>> entries = pools.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<String, TransferPool> entry = entries.next();
+            if(!entry.getKey().equals(keptKey) && entry.getValue().isIdleSince(now - IDLE_TIMEOUT)) {
+                entries.remove();
+            }
+        }
+    }
+
+    @Terminator
+    public static synchronized void shutdownAll() {
+        for(TransferPool pool: pools.values()) {
+            pool.executor.shutdownNow();
+        }
+        pools.clear();
+    }
+
+    public ThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    public void transferStarted() {
+        lastUsed = System.currentTimeMillis();
+        activeTransfers.incrementAndGet();
+    }
+
+    public void transferFinished() {
+        lastUsed = System.currentTimeMillis();
+        activeTransfers.decrementAndGet();
+        completedTransfers.incrementAndGet();
+    }
+
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    public int getCompletedTransfers() {
+        return completedTransfers.get();
+    }
+
+    private boolean isIdleSince(long time) {
+        return lastUsed < time && activeTransfers.get() == 0 && executor.getPoolSize() == 0 && executor.getQueue().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "S3 transfer pool: " + activeTransfers.get() + " active transfers, " + executor.getActiveCount() + " of "
+                + executor.getMaximumPoolSize() + " threads busy, " + executor.getQueue().size() + " queued tasks, "
+                + completedTransfers.get() + " transfers completed";
+    }
+}
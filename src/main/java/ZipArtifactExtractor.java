@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ */
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Extracts a zip artifact while it is being downloaded, hashing the downloaded bytes on the way.
+// The entries are extracted into a staging directory inside the destination, and only moved into place once the whole
+// artifact has been read and its SHA-256 matches the one CodeBuild reported, so a corrupt download leaves nothing behind.
+public class ZipArtifactExtractor {
+
+    public static final String sha256MismatchError = "SHA-256 checksum of the downloaded artifact doesn't match: ";
+    public static final String invalidEntryError = "Zip entry is outside of the destination directory: ";
+
+    // @param expectedSha256: the hex SHA-256 of the whole zip, or null to skip the check.
+    // @return: the number of files extracted.
+    public static int extract(InputStream in, File destination, String expectedSha256) throws IOException {
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        DigestInputStream digestIn = new DigestInputStream(in, sha256);
+        File staging = new File(destination, ".codebuild-extract-" + UUID.randomUUID().toString());
+        try {
+            int files = extractEntries(new ZipInputStream(digestIn), staging);
+            // Read what follows the last entry (the central directory), so the whole artifact is hashed.
+            IOUtils.copyLarge(digestIn, NullOutputStream.NULL_OUTPUT_STREAM);
+
+            String sha256sum = Hex.encodeHexString(sha256.digest());
+            if(expectedSha256 != null && !expectedSha256.isEmpty() && !expectedSha256.equalsIgnoreCase(sha256sum)) {
+                throw new IOException(sha256MismatchError + "expected " + expectedSha256 + " but was " + sha256sum);
+            }
+            move(staging, destination);
+            return files;
+        } finally {
+            FileUtils.deleteQuietly(staging);
+        }
+    }
+
+    private static int extractEntries(ZipInputStream zip, File staging) throws IOException {
+        String stagingPath = staging.getCanonicalPath() + File.separator;
+        int files = 0;
+        ZipEntry entry;
+        while((entry = zip.getNextEntry()) != null) {
+            File target = new File(staging, entry.getName());
+            // Reject entries such as "../file" that would be written outside of the destination.
+            if(!target.getCanonicalPath().startsWith(stagingPath)) {
+                throw new IOException(invalidEntryError + entry.getName());
+            }
+
+            if(entry.isDirectory()) {
+                mkdirs(target);
+            } else {
+                mkdirs(target.getParentFile());
+                try(OutputStream out = new FileOutputStream(target)) {
+                    IOUtils.copyLarge(zip, out);
+                }
+                files++;
+            }
+        }
+        return files;
+    }
+
+    // Moves the contents of the source directory into the target directory, merging directories that exist in both
+    // and replacing files.
+    private static void move(File source, File target) throws IOException {
+        mkdirs(target);
+        File[] children = source.listFiles();
+        if(children == null) {
+            return;
+        }
+        for(File child: children) {
+            File targetChild = new File(target, child.getName());
+            if(child.isDirectory() && targetChild.isDirectory()) {
+                move(child, targetChild);
+            } else {
+                if(targetChild.isDirectory()) {
+                    FileUtils.deleteDirectory(targetChild);
+                }
+                Files.move(child.toPath(), targetChild.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+        }
+    }
+}
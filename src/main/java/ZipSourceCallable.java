@@ -18,10 +18,8 @@ import com.amazonaws.services.codebuild.model.InvalidInputException;
 import hudson.FilePath;
 import hudson.Util;
 import hudson.remoting.VirtualChannel;
-import hudson.util.io.Archiver;
-import hudson.util.io.ArchiverFactory;
 import jenkins.MasterToSlaveFileCallable;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
@@ -29,13 +27,18 @@ import org.apache.tools.ant.types.FileSet;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -45,6 +48,10 @@ public class ZipSourceCallable extends MasterToSlaveFileCallable<String> {
     final FilePath workspace;
     final String includes;  // never null
     final String excludes;  // never null
+    final int zipThreads;   // 0 for one thread per processor of the agent
+    final boolean deterministic;
+    final int compressionLevel;         // -1 for the default level
+    final String storedExtensions;      // may be null
 
     public static final String zipSourceError = "zipSource usage: prefixToTrim must be contained in the given directory.";
 
@@ -53,65 +60,75 @@ public class ZipSourceCallable extends MasterToSlaveFileCallable<String> {
     }
 
     public ZipSourceCallable(FilePath workspace, String includes, String excludes) {
+        this(workspace, includes, excludes, 0);
+    }
+
+    public ZipSourceCallable(FilePath workspace, String includes, String excludes, int zipThreads) {
+        this(workspace, includes, excludes, zipThreads, false);
+    }
+
+    // @param deterministic: normalize timestamps and permissions so the same source always produces the same zip.
+    public ZipSourceCallable(FilePath workspace, String includes, String excludes, int zipThreads, boolean deterministic) {
+        this(workspace, includes, excludes, zipThreads, deterministic, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    // @param compressionLevel: the deflate level from 0 to 9, or -1 for the default level.
+    // @param storedExtensions: comma separated extensions of files that are stored without compression.
+    public ZipSourceCallable(FilePath workspace, String includes, String excludes, int zipThreads, boolean deterministic, int compressionLevel, String storedExtensions) {
         this.workspace = workspace;
         this.includes = Util.fixNull(includes);
         this.excludes = Util.fixNull(excludes);
+        this.zipThreads = zipThreads;
+        this.deterministic = deterministic;
+        this.compressionLevel = compressionLevel;
+        this.storedExtensions = storedExtensions;
     }
 
     @Override
     public String invoke(File f, VirtualChannel channel) throws IOException {
-        // Create a temp file to zip into so we do not zip ourselves
-        File tempFile = File.createTempFile(f.getName(), null, null);
-        try(OutputStream zipFileOutputStream = new FileOutputStream(tempFile)) {
-            zipSourceWithArchiver(zipFileOutputStream);
+        // Zip straight into the destination and hash the bytes as they are written, so the zip is written once and never re-read.
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        try(OutputStream zipFileOutputStream = new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(f), md5))) {
+            zipSourceWithArchiver(zipFileOutputStream, f);
         } catch (IOException e) {
             throw e;
         } catch (Exception e) {
             throw new IOException(e);
         }
 
-        // Copy zip to the location we expect it to be in
-        FileUtils.copyFile(tempFile, f);
-
-        try {
-            tempFile.delete();
-        } catch (Exception e) {
-            // If this fails, the file will just be cleaned up
-            // by the system later.  We are just trying to be
-            // good citizens here.
-        }
-
-        return S3DataManager.getZipMD5(f);
+        return S3DataManager.encodeMD5(md5.digest());
     }
 
-    @Restricted(NoExternalUse.class)    // For testing purpose
+    @Restricted(NoExternalUse.class)    // For testing purpose and S3StreamingUploadCallable
     protected void zipSourceWithArchiver(final OutputStream out) throws InvalidInputException, IOException, InterruptedException {
+        zipSourceWithArchiver(out, null);
+    }
+
+    // @param zipFile: the file being written, which is left out of the zip if it is inside the workspace, or null.
+    private void zipSourceWithArchiver(final OutputStream out, final File zipFile) throws InvalidInputException, IOException, InterruptedException {
         if (!workspace.exists() || !workspace.isDirectory()) {
             throw new InvalidInputException("Empty or invalid source directory: " + workspace.getRemote());
         }
-        Archiver archiver = ArchiverFactory.ZIP.create(out);
+        ParallelZipArchiver archiver = new ParallelZipArchiver(out, zipThreads, deterministic, compressionLevel, storedExtensions);
         try {
-            this.zipSourceWithArchiverImpl(archiver);
+            this.zipSourceWithArchiverImpl(archiver, zipFile == null ? null : zipFile.getCanonicalFile());
         } finally {
             archiver.close();
         }
     }
 
-    private void zipSourceWithArchiverImpl(final Archiver archiver) throws InvalidInputException, IOException, InterruptedException {
+    private void zipSourceWithArchiverImpl(final ParallelZipArchiver archiver, final File zipFile) throws InvalidInputException, IOException, InterruptedException {
         String sourceFilePath = workspace.getRemote();
 
         // NOTE: This code is running on the remote.
-        // FilePath.list() is really powerful, but cannot be used as it doesn't pick empty directories.
-        FileSet fs = Util.createFileSet(new File(sourceFilePath), includes, excludes);
-        fs.setDefaultexcludes(false);   // for backward compatibility
-        DirectoryScanner ds;
-        try {
-            ds = fs.getDirectoryScanner(new Project());
-        } catch (BuildException e) {
-            throw new IOException(e.getMessage());
-        }
+        DirectoryScanner ds = scanSourceDirectory(new File(sourceFilePath), includes, excludes);
+        // Sorted, so that entries don't depend on the order the filesystem lists them in.
+        String[] dirs = ds.getIncludedDirectories();
+        String[] files = ds.getIncludedFiles();
+        Arrays.sort(dirs);
+        Arrays.sort(files);
         // To include directories with no files
-        for (String dir: ds.getIncludedDirectories()) {
+        for (String dir: dirs) {
             if ("".equals(dir)) {
                 // skip the top directory to make an invalid archive if no files.
                 // (backward compatibility)
@@ -119,8 +136,25 @@ public class ZipSourceCallable extends MasterToSlaveFileCallable<String> {
             }
             archiver.visit(new File(sourceFilePath, dir), dir);
         }
-        for (String file: ds.getIncludedFiles()) {
-            archiver.visit(new File(sourceFilePath, file), file);
+        for (String file: files) {
+            File f = new File(sourceFilePath, file);
+            // so we do not zip ourselves
+            if (zipFile != null && f.getCanonicalFile().equals(zipFile)) {
+                continue;
+            }
+            archiver.visit(f, file);
+        }
+    }
+
+    // Scans the directories and files of the source directory that are zipped, given the workspace includes and excludes.
+    // FilePath.list() is really powerful, but cannot be used as it doesn't pick empty directories.
+    public static DirectoryScanner scanSourceDirectory(File sourceDirectory, String includes, String excludes) throws IOException {
+        FileSet fs = Util.createFileSet(sourceDirectory, Util.fixNull(includes), Util.fixNull(excludes));
+        fs.setDefaultexcludes(false);   // for backward compatibility
+        try {
+            return fs.getDirectoryScanner(new Project());
+        } catch (BuildException e) {
+            throw new IOException(e.getMessage());
         }
     }
 
@@ -48,14 +48,21 @@ import com.cloudbees.plugins.credentials.CredentialsDescriptor;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
 import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 import lombok.Getter;
 import lombok.Setter;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
-import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.amazonaws.codebuild.jenkinsplugin.Validation.*;
 
@@ -69,6 +76,19 @@ public class CodeBuildBaseCredentials extends BaseStandardCredentials implements
 
     public static final long serialVersionUID = 555L;
     private static final int MIN_VALIDITY_ALLOWED = 60 * 3 * 1000; //3 minutes in milliseconds
+    static final int REFRESH_AHEAD = 60 * 15 * 1000; //15 minutes in milliseconds
+    private static final int ROLE_SESSION_DURATION = 3600; //1 hour in seconds
+    private static final int REFRESH_THREADS = 2;
+
+    // Background AssumeRole calls get their own threads rather than the Jenkins timer, which they could hold up when
+    // many credentials are refreshed at once or STS is slow.
+    private static final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+            1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "CodeBuild credentials refresh"));
+
+    static {
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
 
     @Getter @Setter private final String accessKey;
     @Getter @Setter private final String secretKey;
@@ -77,7 +97,11 @@ public class CodeBuildBaseCredentials extends BaseStandardCredentials implements
     @Getter @Setter private final String iamRoleArn;
     @Getter @Setter private final String externalId;
 
-    transient private Credentials roleCredentials = null;
+    transient private volatile Credentials roleCredentials = null;
+    transient private Future<?> scheduledRefresh;
+    // Reused for every AssumeRole: the keys it uses never change.
+    transient private AWSSecurityTokenServiceClient stsClient;
+    transient private boolean released;
 
     @DataBoundConstructor
     public CodeBuildBaseCredentials(CredentialsScope scope, String id, String description, String accessKey, String secretKey,
@@ -103,53 +127,127 @@ public class CodeBuildBaseCredentials extends BaseStandardCredentials implements
         }
     }
 
+    // Assumed-role credentials are read without locking. Only the first build to use them, or a build finding them
+    // about to expire, waits for AssumeRole; otherwise they are refreshed in the background REFRESH_AHEAD of their
+    // expiry, once for all the builds sharing these credentials.
     @Override
     public AWSCredentials getCredentials() {
-        AWSCredentialsProvider credentialsProvider = getBasicCredentialsOrDefaultChain(accessKey, secretKey);
-        AWSCredentials credentials = credentialsProvider.getCredentials();
+        if (iamRoleArn.isEmpty()) {
+            return getBasicCredentialsOrDefaultChain(accessKey, secretKey).getCredentials();
+        }
 
-        if (!iamRoleArn.isEmpty()) {
-            if (haveCredentialsExpired()) {
-                refresh();
-            }
-            credentials = new BasicSessionCredentials(
-                    roleCredentials.getAccessKeyId(),
-                    roleCredentials.getSecretAccessKey(),
-                    roleCredentials.getSessionToken());
+        Credentials current = roleCredentials;
+        if (expiresWithin(current, MIN_VALIDITY_ALLOWED)) {
+            current = refreshRoleCredentials(MIN_VALIDITY_ALLOWED);
+        } else if (expiresWithin(current, REFRESH_AHEAD)) {
+            scheduleRefresh();
+        }
+        return new BasicSessionCredentials(
+                current.getAccessKeyId(),
+                current.getSecretAccessKey(),
+                current.getSessionToken());
+    }
+
+    // Returns credentials valid for at least the given time, capped to most of the role session duration, for uses
+    // that can't refresh them, such as transfers made on an agent.
+    public AWSCredentials getCredentialsValidFor(long minValidity) {
+        if (iamRoleArn.isEmpty()) {
+            return getCredentials();
         }
 
-        return credentials;
+        long validity = Math.min(minValidity, ROLE_SESSION_DURATION * 1000L - MIN_VALIDITY_ALLOWED);
+        Credentials current = roleCredentials;
+        if (expiresWithin(current, validity)) {
+            current = refreshRoleCredentials(validity);
+        }
+        return new BasicSessionCredentials(
+                current.getAccessKeyId(),
+                current.getSecretAccessKey(),
+                current.getSessionToken());
     }
 
     @Override
     public void refresh() {
         if (!iamRoleArn.isEmpty()) {
-            if (!haveCredentialsExpired()) {
-                return;
-            }
+            refreshRoleCredentials(MIN_VALIDITY_ALLOWED);
+        }
+    }
 
-            AWSCredentialsProvider credentialsProvider = getBasicCredentialsOrDefaultChain(accessKey, secretKey);
-            AWSCredentials credentials = credentialsProvider.getCredentials();
+    // Assumes the role unless another thread already got credentials valid for longer than the given time.
+    private synchronized Credentials refreshRoleCredentials(long minValidity) {
+        if (expiresWithin(roleCredentials, minValidity)) {
+            roleCredentials = assumeRole();
+        }
+        return roleCredentials;
+    }
 
-            AssumeRoleRequest assumeRequest = new AssumeRoleRequest()
-                    .withRoleArn(iamRoleArn)
-                    .withExternalId(externalId)
-                    .withDurationSeconds(3600)
-                    .withRoleSessionName(ROLE_SESSION_NAME);
+    private synchronized void scheduleRefresh() {
+        if (scheduledRefresh != null || released) {
+            return;
+        }
+        try {
+            scheduledRefresh = refreshExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshRoleCredentials(REFRESH_AHEAD);
+                    } catch (RuntimeException e) {
+                        // The current credentials are still valid: the next build to use them retries.
+                    } finally {
+                        synchronized (CodeBuildBaseCredentials.this) {
+                            scheduledRefresh = null;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Jenkins is stopping: the credentials are refreshed once they are about to expire.
+        }
+    }
 
-            AssumeRoleResult assumeResult = new AWSSecurityTokenServiceClient(credentials).assumeRole(assumeRequest);
+    @Terminator
+    public static void shutdownRefreshes() {
+        refreshExecutor.shutdownNow();
+    }
 
-            roleCredentials = assumeResult.getCredentials();
+    // Called once these credentials have been replaced or removed: cancels the background refresh and shuts down the
+    // STS client. Builds that still use them can go on, each AssumeRole then using a client of its own.
+    public synchronized void release() {
+        released = true;
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+        if (stsClient != null) {
+            stsClient.shutdown();
+            stsClient = null;
         }
     }
 
-    private boolean haveCredentialsExpired() {
-        if (roleCredentials == null
-                || roleCredentials.getExpiration().getTime() < (new Date().getTime() + MIN_VALIDITY_ALLOWED)) {
-            return true;
+    protected Credentials assumeRole() {
+        AssumeRoleRequest assumeRequest = new AssumeRoleRequest()
+                .withRoleArn(iamRoleArn)
+                .withExternalId(externalId)
+                .withDurationSeconds(ROLE_SESSION_DURATION)
+                .withRoleSessionName(ROLE_SESSION_NAME);
+
+        if (released) {
+            AWSSecurityTokenServiceClient client = new AWSSecurityTokenServiceClient(getBasicCredentialsOrDefaultChain(accessKey, secretKey));
+            try {
+                return client.assumeRole(assumeRequest).getCredentials();
+            } finally {
+                client.shutdown();
+            }
+        }
+        if (stsClient == null) {
+            stsClient = new AWSSecurityTokenServiceClient(getBasicCredentialsOrDefaultChain(accessKey, secretKey));
         }
+        AssumeRoleResult assumeResult = stsClient.assumeRole(assumeRequest);
+        return assumeResult.getCredentials();
+    }
 
-        return false;
+    private static boolean expiresWithin(Credentials credentials, long time) {
+        return credentials == null || credentials.getExpiration().getTime() < System.currentTimeMillis() + time;
     }
 
     @Extension
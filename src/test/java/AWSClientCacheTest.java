@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.AmazonS3Client;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AWSClientCacheTest {
+
+    @After
+    public void tearDown() {
+        AWSClientCache.shutdownAll();
+    }
+
+    private static class CountingBuilder implements AWSClientCache.ClientBuilder<AmazonS3Client> {
+        private int built;
+
+        @Override
+        public AmazonS3Client build() {
+            built++;
+            return mock(AmazonS3Client.class);
+        }
+    }
+
+    @Test
+    public void testClientIsSharedPerKey() {
+        CountingBuilder builder = new CountingBuilder();
+        AmazonS3Client client = AWSClientCache.getClient("key", builder);
+
+        assertSame(client, AWSClientCache.getClient("key", builder));
+        assertNotSame(client, AWSClientCache.getClient("other key", builder));
+        assertEquals(2, builder.built);
+    }
+
+    @Test
+    public void testIdleClientIsEvictedAndShutDown() {
+        CountingBuilder builder = new CountingBuilder();
+        AmazonS3Client client = AWSClientCache.getClient("key", builder);
+
+        AWSClientCache.evictIdleClients(System.currentTimeMillis() + AWSClientCache.IDLE_TIMEOUT + 1);
+
+        verify(client).shutdown();
+        assertEquals(0, AWSClientCache.size());
+        assertNotSame(client, AWSClientCache.getClient("key", builder));
+    }
+
+    @Test
+    public void testRecentlyUsedClientIsKept() {
+        AmazonS3Client client = AWSClientCache.getClient("key", new CountingBuilder());
+
+        AWSClientCache.evictIdleClients(System.currentTimeMillis());
+
+        verify(client, never()).shutdown();
+        assertEquals(1, AWSClientCache.size());
+    }
+
+    @Test
+    public void testClientWithRequestInProgressIsKept() {
+        AmazonS3Client client = AWSClientCache.getClient("key", new CountingBuilder());
+        ArgumentCaptor<RequestHandler2> handler = ArgumentCaptor.forClass(RequestHandler2.class);
+        verify(client).addRequestHandler(handler.capture());
+
+        handler.getValue().beforeRequest(null);
+        AWSClientCache.evictIdleClients(System.currentTimeMillis() + AWSClientCache.IDLE_TIMEOUT + 1);
+
+        verify(client, never()).shutdown();
+        assertEquals(1, AWSClientCache.size());
+
+        handler.getValue().afterResponse(null, null);
+        AWSClientCache.evictIdleClients(System.currentTimeMillis() + AWSClientCache.IDLE_TIMEOUT + 1);
+
+        verify(client).shutdown();
+        assertEquals(0, AWSClientCache.size());
+    }
+
+    @Test
+    public void testLeasedClientIsKept() {
+        AmazonS3Client client = AWSClientCache.getClient("key", new CountingBuilder());
+
+        AWSClientCache.lease(client);
+        AWSClientCache.evictIdleClients(System.currentTimeMillis() + AWSClientCache.IDLE_TIMEOUT + 1);
+
+        verify(client, never()).shutdown();
+        assertEquals(1, AWSClientCache.size());
+
+        AWSClientCache.release(client);
+        AWSClientCache.evictIdleClients(System.currentTimeMillis() + AWSClientCache.IDLE_TIMEOUT + 1);
+
+        verify(client).shutdown();
+        assertEquals(0, AWSClientCache.size());
+    }
+
+    @Test
+    public void testShutdownAll() {
+        AmazonS3Client client = AWSClientCache.getClient("key", new CountingBuilder());
+
+        AWSClientCache.shutdownAll();
+
+        verify(client).shutdown();
+        assertEquals(0, AWSClientCache.size());
+    }
+}
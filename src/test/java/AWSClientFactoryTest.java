@@ -14,11 +14,13 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSSessionCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials;
 import com.amazonaws.services.codebuild.model.InvalidInputException;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.cloudbees.plugins.credentials.*;
 import hudson.EnvVars;
 import hudson.model.AbstractProject;
@@ -37,13 +39,25 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import static com.amazonaws.auth.profile.internal.ProfileKeyConstants.*;
 import static com.amazonaws.codebuild.jenkinsplugin.Validation.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @PowerMockIgnore("javax.management.*")
@@ -66,11 +80,13 @@ public class AWSClientFactoryTest {
 
     @Before
     public void setUp() {
+        CredentialsIndex.invalidate();
         PowerMockito.mockStatic(CredentialsMatchers.class);
         PowerMockito.mockStatic(SystemCredentialsProvider.class);
         PowerMockito.mockStatic(DefaultAWSCredentialsProviderChain.class);
         when(CredentialsMatchers.firstOrNull(any(Iterable.class), any(CredentialsMatcher.class))).thenReturn(mockCBCreds);
         when(mockCBCreds.getCredentials()).thenReturn(mockAWSCreds);
+        when(mockCBCreds.getCredentialsValidFor(anyLong())).thenReturn(mockAWSCreds);
         when(mockCBCreds.getCredentialsDescriptor()).thenReturn(codeBuildDescriptor);
         when(mockCBCreds.getProxyHost()).thenReturn(proxyHost);
         when(mockCBCreds.getProxyPort()).thenReturn(proxyPort);
@@ -124,6 +140,42 @@ public class AWSClientFactoryTest {
 
     }
 
+    @Test
+    public void testClientsAreSharedBetweenFactories() {
+        AWSClientFactory first = new AWSClientFactory("keys", "", proxyHost, proxyPort, "a", awsSecretKey, "t", REGION, build, null);
+        AWSClientFactory second = new AWSClientFactory("keys", "", proxyHost, proxyPort, "a", awsSecretKey, "t", REGION, build, null);
+
+        assertSame(first.getS3Client(), second.getS3Client());
+        assertSame(first.getCodeBuildClient(), second.getCodeBuildClient());
+        assertNotSame(first.getCodeBuildClient(), first.getCloudWatchLogsClient());
+    }
+
+    @Test
+    public void testClientsAreNotSharedWithOtherSecretKey() {
+        Secret otherSecretKey = PowerMockito.mock(Secret.class);
+        when(otherSecretKey.getPlainText()).thenReturn("other");
+        AWSClientFactory first = new AWSClientFactory("keys", "", proxyHost, proxyPort, "a", awsSecretKey, "t", REGION, build, null);
+        AWSClientFactory second = new AWSClientFactory("keys", "", proxyHost, proxyPort, "a", otherSecretKey, "t", REGION, build, null);
+
+        assertNotSame(first.getS3Client(), second.getS3Client());
+    }
+
+    @Test
+    public void testClientConfigurationIsCopiedFromTemplate() {
+        ClientConfiguration first = AWSClientFactory.getClientConfiguration(proxyHost, 2);
+        ClientConfiguration second = AWSClientFactory.getClientConfiguration(proxyHost, 2);
+
+        assertNotSame(first, second);
+        assertSame(first.getRetryPolicy(), second.getRetryPolicy());
+        assertEquals(first.getUserAgentPrefix(), second.getUserAgentPrefix());
+        assertEquals(proxyHost, second.getProxyHost());
+        assertEquals(2, second.getProxyPort());
+
+        first.setMaxConnections(1);
+        assertNotEquals(1, AWSClientFactory.getClientConfiguration(proxyHost, 2).getMaxConnections());
+        assertNull(AWSClientFactory.getClientConfiguration(null, null).getProxyHost());
+    }
+
     @Test
     public void testDefaultCreds() {
         AWSClientFactory awsClientFactory = new AWSClientFactory("keys", "", proxyHost, proxyPort, "", awsSecretKey, "", REGION, build, null);
@@ -131,6 +183,30 @@ public class AWSClientFactoryTest {
         assert(awsClientFactory.getProxyPort().equals(parseInt(proxyPort)));
     }
 
+    @Test
+    public void testDefaultCredsAreNotSentToAgents() {
+        AWSClientFactory awsClientFactory = new AWSClientFactory("keys", "", proxyHost, proxyPort, "", awsSecretKey, "", REGION, build, null);
+        assertNull(awsClientFactory.getAgentS3ClientConfig());
+    }
+
+    @Test
+    public void testJenkinsDefaultCredsAreNotSentToAgents() {
+        when(mockCBCreds.getCredentialsDescriptor()).thenReturn(CodeBuildBaseCredentials.DEFAULT_CHAIN_CREDS);
+        AWSClientFactory awsClientFactory = new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+        assertNull(awsClientFactory.getAgentS3ClientConfig());
+    }
+
+    @Test
+    public void testJobCredsAreSentToAgents() {
+        PowerMockito.mockStatic(Secret.class);
+        when(Secret.fromString(anyString())).thenReturn(awsSecretKey);
+        AWSClientFactory keysFactory = new AWSClientFactory("keys", "", proxyHost, proxyPort, "a", awsSecretKey, "", REGION, build, null);
+        assertNotNull(keysFactory.getAgentS3ClientConfig());
+
+        AWSClientFactory jenkinsFactory = new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+        assertNotNull(jenkinsFactory.getAgentS3ClientConfig());
+    }
+
 
 
     @Test
@@ -162,6 +238,63 @@ public class AWSClientFactoryTest {
         assert(awsClientFactory.getCredentialsDescriptor().contains(credentialsId));
     }
 
+    @Test
+    public void testJenkinsCredsAreIndexed() {
+        new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+        new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+
+        PowerMockito.verifyStatic(times(1));
+        SystemCredentialsProvider.getInstance();
+    }
+
+    @Test
+    public void testJenkinsCredsIndexIsInvalidatedOnChange() throws Exception {
+        new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+        new CredentialsIndex.CredentialsChangeListener().onChange(mockSysCreds, null);
+        CredentialsIndex.awaitUpdates();
+        new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null);
+
+        // Once for each lookup, and once to index the credentials ids again.
+        PowerMockito.verifyStatic(times(3));
+        SystemCredentialsProvider.getInstance();
+    }
+
+    @Test
+    public void testReplacedJenkinsCredsAreReleased() throws Exception {
+        CodeBuildBaseCredentials replaced = mock(CodeBuildBaseCredentials.class);
+        CodeBuildBaseCredentials replacing = mock(CodeBuildBaseCredentials.class);
+        when(mockSysCreds.getCredentials()).thenReturn(
+                Collections.<Credentials>singletonList(replaced),
+                Collections.<Credentials>singletonList(replacing));
+
+        new CredentialsIndex.CredentialsChangeListener().onChange(mockSysCreds, null);
+        new CredentialsIndex.CredentialsChangeListener().onChange(mockSysCreds, null);
+        CredentialsIndex.awaitUpdates();
+
+        verify(replaced).release();
+        verify(replacing, never()).release();
+    }
+
+    @Test
+    public void testReplacedJenkinsCredsGetNewClients() {
+        try {
+            AmazonS3Client client = new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null).getS3Client();
+            assertSame(client, new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null).getS3Client());
+
+            // Edited credentials are a new instance with the same id.
+            CodeBuildCredentials replacing = mock(CodeBuildCredentials.class);
+            when(replacing.getCredentialsDescriptor()).thenReturn(codeBuildDescriptor);
+            when(replacing.getProxyHost()).thenReturn(proxyHost);
+            when(replacing.getProxyPort()).thenReturn(proxyPort);
+            when(CredentialsMatchers.firstOrNull(any(Iterable.class), any(CredentialsMatcher.class))).thenReturn(replacing);
+            CredentialsIndex.invalidate();
+
+            assertNotSame(client, new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null).getS3Client());
+        } finally {
+            AWSClientCache.shutdownAll();
+        }
+    }
+
     @Test
     public void testNullAwsSecretKey() {
         try {
@@ -207,6 +340,36 @@ public class AWSClientFactoryTest {
         assert(awsClientFactory.getCredentialsDescriptor().contains(credentialsId));
     }
 
+    @Test
+    public void testFolderCredsWithSameIdHaveDifferentKeys() {
+        Jenkins mockInstance = mock(Jenkins.class);
+        Item mockFolder = mock(Item.class);
+        PowerMockito.mockStatic(Jenkins.class);
+        when(Jenkins.getInstance()).thenReturn(mockInstance);
+        when(mockInstance.getItemByFullName(any(String.class))).thenReturn(mockFolder);
+
+        PowerMockito.mockStatic(CredentialsProvider.class);
+        List<Credentials> mockFolderCredsList = mock(List.class);
+        when(CredentialsProvider.lookupCredentials(Credentials.class, mockFolder)).thenReturn(mockFolderCredsList);
+
+        List<Credentials> mockCredsList = mock(List.class);
+        when(mockSysCreds.getCredentials()).thenReturn(mockCredsList);
+        when(CredentialsMatchers.firstOrNull(eq(mockCredsList), any(CredentialsMatcher.class))).thenReturn(null);
+        when(CredentialsMatchers.firstOrNull(eq(mockFolderCredsList), any(CredentialsMatcher.class))).thenReturn(mockCBCreds);
+
+        AbstractProject mockProject = mock(AbstractProject.class);
+        ItemGroup mockFolderItem = mock(ItemGroup.class);
+        when(build.getParent()).thenReturn(mockProject);
+        when(mockProject.getParent()).thenReturn(mockFolderItem);
+
+        when(mockFolderItem.getFullName()).thenReturn("team-a");
+        String teamAKey = new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null).getClientKey();
+        when(mockFolderItem.getFullName()).thenReturn("team-b");
+        String teamBKey = new AWSClientFactory("jenkins", "id", "", "", "", null, "", REGION, build, null).getClientKey();
+
+        assertNotEquals(teamAKey, teamBKey);
+    }
+
     @Test(expected=InvalidInputException.class)
     public void testNonExistentCreds() {
         String credentialsId = "folder-creds";
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class BuildEventListenerTest {
+
+    private static final String queueUrl = "http://localhost:9324/queue/codebuild-events";
+    private static final String buildId = "project:0c8cd6e4-4b4e-4c1d-9d1b-2a8e1b4c5f6a";
+    private static final String buildArn = "arn:aws:codebuild:us-east-1:123456789012:build/" + buildId;
+
+    private AmazonSQS mockSQS = mock(AmazonSQS.class);
+    private BuildEventListener listener;
+
+    @Before
+    public void setUp() {
+        listener = new BuildEventListener(mockSQS, queueUrl);
+    }
+
+    private String stateChangeEvent(String arn) {
+        return "{\"detail-type\":\"" + BuildEventListener.buildStateChangeEvent + "\",\"source\":\"aws.codebuild\"," +
+                "\"detail\":{\"build-status\":\"SUCCEEDED\",\"project-name\":\"project\",\"build-id\":\"" + arn + "\"}}";
+    }
+
+    private void receive(String... bodies) {
+        ReceiveMessageResult result = new ReceiveMessageResult();
+        for(int i = 0; i < bodies.length; i++) {
+            result.getMessages().add(new Message().withBody(bodies[i]).withReceiptHandle("handle" + i));
+        }
+        when(mockSQS.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(result);
+    }
+
+    @Test
+    public void testGetEndpoint() {
+        assertEquals("http://localhost:9324", BuildEventListener.getEndpoint(queueUrl));
+        assertEquals("https://sqs.us-east-1.amazonaws.com", BuildEventListener.getEndpoint("https://sqs.us-east-1.amazonaws.com/123456789012/queue"));
+    }
+
+    @Test
+    public void testGetBuildIdFromEvent() {
+        assertEquals(buildId, listener.getBuildId(stateChangeEvent(buildArn)));
+    }
+
+    @Test
+    public void testGetBuildIdFromSNSNotification() {
+        String message = stateChangeEvent(buildArn).replace("\"", "\\\"");
+        String notification = "{\"Type\":\"Notification\",\"Message\":\"" + message + "\"}";
+        assertEquals(buildId, listener.getBuildId(notification));
+    }
+
+    @Test
+    public void testGetBuildIdIgnoresOtherMessages() {
+        assertNull(listener.getBuildId("{\"detail-type\":\"EC2 Instance State-change Notification\",\"detail\":{}}"));
+        assertNull(listener.getBuildId("not json"));
+    }
+
+    @Test
+    public void testEventWakesRegisteredBuild() throws Exception {
+        listener.register(buildId);
+        receive(stateChangeEvent(buildArn));
+
+        assertEquals(1, listener.receiveEvents());
+        assertTrue(listener.awaitEvent(buildId, 1L));
+        assertFalse(listener.awaitEvent(buildId, 1L));
+    }
+
+    @Test
+    public void testEventRunsCallback() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        listener.register(buildId, new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        });
+        receive(stateChangeEvent(buildArn));
+
+        listener.receiveEvents();
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testUnregisteredBuildIsNotWoken() throws Exception {
+        listener.register(buildId);
+        listener.unregister(buildId);
+        receive(stateChangeEvent(buildArn));
+
+        listener.receiveEvents();
+        assertFalse(listener.awaitEvent(buildId, 1L));
+    }
+
+    @Test
+    public void testAllMessagesDeleted() {
+        listener.register(buildId);
+        receive(stateChangeEvent(buildArn), "not json", stateChangeEvent("arn:aws:codebuild:us-east-1:123456789012:build/other:1"));
+
+        assertEquals(3, listener.receiveEvents());
+        verify(mockSQS, times(3)).deleteMessage(any(DeleteMessageRequest.class));
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codebuild.AWSCodeBuildClient;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsRequest;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsResult;
+import com.amazonaws.services.codebuild.model.Build;
+import com.amazonaws.services.codebuild.model.StatusType;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class BuildStatusPollerTest {
+
+    private AWSCodeBuildClient mockClient = mock(AWSCodeBuildClient.class);
+
+    // Answers BatchGetBuilds with an in-progress build for every requested id.
+    private Answer<BatchGetBuildsResult> echoBuilds = new Answer<BatchGetBuildsResult>() {
+        public BatchGetBuildsResult answer(InvocationOnMock invocation) {
+            BatchGetBuildsRequest request = (BatchGetBuildsRequest) invocation.getArguments()[0];
+            List<Build> builds = new ArrayList<>();
+            for(String id: request.getIds()) {
+                builds.add(new Build().withId(id).withBuildStatus(StatusType.IN_PROGRESS));
+            }
+            return new BatchGetBuildsResult().withBuilds(builds);
+        }
+    };
+
+    private BuildStatusPoller newPoller() {
+        return BuildStatusPoller.getInstance(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void testSameKeySharesPoller() {
+        String key = UUID.randomUUID().toString();
+        assertSame(BuildStatusPoller.getInstance(key), BuildStatusPoller.getInstance(key));
+        assertNotSame(BuildStatusPoller.getInstance(key), newPoller());
+    }
+
+    @Test
+    public void testSingleBuildPollsEveryTime() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+
+        assertEquals("a", poller.getBuild(mockClient, "a").getId());
+        assertEquals("a", poller.getBuild(mockClient, "a").getId());
+        verify(mockClient, times(2)).batchGetBuilds(any(BatchGetBuildsRequest.class));
+    }
+
+    @Test
+    public void testConcurrentBuildsShareOneCall() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+        poller.register("b");
+        poller.register("c");
+
+        assertEquals("a", poller.getBuild(mockClient, "a").getId());
+        assertEquals("b", poller.getBuild(mockClient, "b").getId());
+        assertEquals("c", poller.getBuild(mockClient, "c").getId());
+
+        ArgumentCaptor<BatchGetBuildsRequest> request = ArgumentCaptor.forClass(BatchGetBuildsRequest.class);
+        verify(mockClient, times(1)).batchGetBuilds(request.capture());
+        assertEquals(3, request.getValue().getIds().size());
+    }
+
+    @Test
+    public void testIdsAreChunked() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        for(int i = 0; i < 250; i++) {
+            poller.register("build-" + i);
+        }
+
+        poller.getBuild(mockClient, "build-0");
+
+        ArgumentCaptor<BatchGetBuildsRequest> request = ArgumentCaptor.forClass(BatchGetBuildsRequest.class);
+        verify(mockClient, times(3)).batchGetBuilds(request.capture());
+        for(BatchGetBuildsRequest r: request.getAllValues()) {
+            assertTrue(r.getIds().size() <= BuildStatusPoller.MAX_BATCH_SIZE);
+        }
+        assertEquals(3, poller.getBatchGetBuildsCalls());
+    }
+
+    @Test
+    public void testUnregisteredBuildIsNotPolled() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+        poller.register("b");
+        poller.unregister("b");
+
+        poller.getBuild(mockClient, "a");
+
+        ArgumentCaptor<BatchGetBuildsRequest> request = ArgumentCaptor.forClass(BatchGetBuildsRequest.class);
+        verify(mockClient).batchGetBuilds(request.capture());
+        assertEquals(1, request.getValue().getIds().size());
+        assertFalse(poller.isRegistered("b"));
+    }
+
+    @Test
+    public void testMissingBuildExcepts() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).thenReturn(new BatchGetBuildsResult().withBuilds(new ArrayList<Build>()));
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+
+        try {
+            poller.getBuild(mockClient, "a");
+            fail("Expected exception");
+        } catch(Exception e) {
+            assertTrue(e.getMessage().contains(BuildStatusPoller.buildNotFoundError));
+        }
+    }
+
+    @Test
+    public void testConcurrentRefreshesAreMadeOnce() throws Exception {
+        final CountDownLatch callStarted = new CountDownLatch(1);
+        final CountDownLatch callCanReturn = new CountDownLatch(1);
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(new Answer<BatchGetBuildsResult>() {
+            public BatchGetBuildsResult answer(InvocationOnMock invocation) throws Throwable {
+                callStarted.countDown();
+                callCanReturn.await();
+                return echoBuilds.answer(invocation);
+            }
+        });
+        final BuildStatusPoller poller = newPoller();
+        poller.register("a");
+        poller.register("b");
+
+        final List<Build> polled = Collections.synchronizedList(new ArrayList<Build>());
+        List<Thread> builds = new ArrayList<>();
+        for(final String id: Arrays.asList("a", "b")) {
+            Thread build = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        polled.add(poller.getBuild(mockClient, id));
+                    } catch (Exception e) {
+                        // Reported by the missing status below
+                    }
+                }
+            });
+            build.start();
+            builds.add(build);
+        }
+
+        // The poller isn't locked while the call is made.
+        assertTrue(callStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(poller.isRegistered("a"));
+        poller.register("c");
+        callCanReturn.countDown();
+        for(Thread build: builds) {
+            build.join();
+        }
+
+        assertEquals(2, polled.size());
+        verify(mockClient, times(1)).batchGetBuilds(any(BatchGetBuildsRequest.class));
+    }
+
+    @Test
+    public void testEventMakesCachedStatusStale() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+        poller.register("b");
+        poller.getBuild(mockClient, "a");
+
+        // The status of b fetched with a is from before the event: b's next poll fetches it again.
+        poller.markStale("b");
+        assertEquals("b", poller.getBuild(mockClient, "b").getId());
+        verify(mockClient, times(2)).batchGetBuilds(any(BatchGetBuildsRequest.class));
+
+        // a still gets the status fetched for b.
+        assertEquals("a", poller.getBuild(mockClient, "a").getId());
+        verify(mockClient, times(2)).batchGetBuilds(any(BatchGetBuildsRequest.class));
+    }
+
+    @Test
+    public void testEventDuringRefreshWaitsForNextOne() throws Exception {
+        final CountDownLatch callStarted = new CountDownLatch(1);
+        final CountDownLatch callCanReturn = new CountDownLatch(1);
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class))).then(new Answer<BatchGetBuildsResult>() {
+            public BatchGetBuildsResult answer(InvocationOnMock invocation) throws Throwable {
+                callStarted.countDown();
+                callCanReturn.await();
+                return echoBuilds.answer(invocation);
+            }
+        });
+        final BuildStatusPoller poller = newPoller();
+        poller.register("a");
+
+        final List<Build> polled = Collections.synchronizedList(new ArrayList<Build>());
+        Thread build = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    polled.add(poller.getBuild(mockClient, "a"));
+                } catch (Exception e) {
+                    // Reported by the missing status below
+                }
+            }
+        });
+        build.start();
+
+        // The call in flight may have been answered before the event.
+        assertTrue(callStarted.await(10, TimeUnit.SECONDS));
+        poller.markStale("a");
+        callCanReturn.countDown();
+        build.join();
+
+        assertEquals(1, polled.size());
+        verify(mockClient, times(2)).batchGetBuilds(any(BatchGetBuildsRequest.class));
+    }
+
+    @Test
+    public void testFailedRefreshIsRetried() throws Exception {
+        when(mockClient.batchGetBuilds(any(BatchGetBuildsRequest.class)))
+                .thenThrow(new AmazonServiceException("throttled"))
+                .then(echoBuilds);
+        BuildStatusPoller poller = newPoller();
+        poller.register("a");
+
+        try {
+            poller.getBuild(mockClient, "a");
+            fail("Expected exception");
+        } catch(AmazonServiceException e) {
+            assertTrue(e.getMessage().startsWith("throttled"));
+        }
+        assertEquals("a", poller.getBuild(mockClient, "a").getId());
+    }
+
+    @Test
+    public void testPollerIsDroppedWithItsLastBuild() {
+        String key = UUID.randomUUID().toString();
+        BuildStatusPoller poller = BuildStatusPoller.getInstance(key);
+        poller.register("a");
+        poller.register("b");
+        int pollers = BuildStatusPoller.size();
+
+        poller.unregister("a");
+        assertSame(poller, BuildStatusPoller.getInstance(key));
+        poller.unregister("b");
+
+        assertEquals(pollers - 1, BuildStatusPoller.size());
+        assertNotSame(poller, BuildStatusPoller.getInstance(key));
+    }
+}
@@ -30,6 +30,8 @@ import java.util.*;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Matchers.any;
 
@@ -80,7 +82,7 @@ public class CloudWatchMonitorTest {
         assert(c.getLatestLogs().size() == 2);
         assert(c.getLatestLogs().get(0).equals("entry 1"));
         assert(c.getLatestLogs().get(1).equals("entry2"));
-        assert(c.getLastPollTime() == 2L);
+        assert(c.getLastEventTime() == 1L);
     }
 
     @Test
@@ -97,7 +99,7 @@ public class CloudWatchMonitorTest {
         GetLogEventsResult resultSecond = new GetLogEventsResult().withEvents(logsSecond).withNextForwardToken(null);
 
         GetLogEventsRequest requestFirst = new GetLogEventsRequest().withStartTime(0L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
-        GetLogEventsRequest requestSecond = new GetLogEventsRequest().withStartTime(2L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestSecond = new GetLogEventsRequest().withStartTime(1L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
 
         when(mockClient.getLogEvents(requestFirst)).thenReturn(resultFirst);
         when(mockClient.getLogEvents(requestSecond)).thenReturn(resultSecond);
@@ -106,12 +108,104 @@ public class CloudWatchMonitorTest {
         assert(c.getLatestLogs().size() == 2);
         assert(c.getLatestLogs().get(0).equals("entry 1"));
         assert(c.getLatestLogs().get(1).equals("entry2"));
-        assert(c.getLastPollTime() == 2L);
+        assert(c.getLastEventTime() == 1L);
 
         c.pollForLogs(listener);
         assert(c.getLatestLogs().size() == 1);
         assert(c.getLatestLogs().get(0).equals("entry 3"));
-        assert(c.getLastPollTime() == 4L);
+        assert(c.getLastEventTime() == 3L);
+    }
+
+    @Test
+    public void testPollDrainsAllPages() throws Exception {
+        CloudWatchMonitor c = getMockCloudWatchMonitor();
+
+        GetLogEventsRequest requestFirst = new GetLogEventsRequest().withStartTime(0L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestSecond = new GetLogEventsRequest().withNextToken("f/1").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestThird = new GetLogEventsRequest().withNextToken("f/2").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+
+        when(mockClient.getLogEvents(requestFirst)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/1")
+                .withEvents(new OutputLogEvent().withMessage("entry 1").withTimestamp(1L)));
+        when(mockClient.getLogEvents(requestSecond)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/2")
+                .withEvents(new OutputLogEvent().withMessage("entry 2").withTimestamp(1L)));
+        when(mockClient.getLogEvents(requestThird)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/2")
+                .withEvents(new ArrayList<OutputLogEvent>()));
+
+        c.pollForLogs(listener);
+        assertEquals(Arrays.asList("entry 1", "entry 2"), c.getLatestLogs());
+        assertEquals("f/2", c.getNextForwardToken());
+        verify(mockClient, times(3)).getLogEvents(any(GetLogEventsRequest.class));
+
+        c.pollForLogs(listener);
+        assertTrue(c.getLatestLogs().isEmpty());
+        verify(mockClient, times(4)).getLogEvents(any(GetLogEventsRequest.class));
+    }
+
+    @Test
+    public void testResumeAfterErrorSkipsEventsAlreadyRead() throws Exception {
+        CloudWatchMonitor c = getMockCloudWatchMonitor();
+
+        GetLogEventsRequest requestFirst = new GetLogEventsRequest().withStartTime(0L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestToken = new GetLogEventsRequest().withNextToken("f/1").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestResume = new GetLogEventsRequest().withStartTime(5L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+
+        when(mockClient.getLogEvents(requestFirst)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/1")
+                .withEvents(new OutputLogEvent().withMessage("entry 1").withTimestamp(5L).withIngestionTime(6L)));
+        when(mockClient.getLogEvents(requestToken)).thenThrow(new InvalidInputException("expired token"));
+        when(mockClient.getLogEvents(requestResume)).thenReturn(new GetLogEventsResult()
+                .withEvents(new OutputLogEvent().withMessage("entry 1").withTimestamp(5L).withIngestionTime(6L),
+                        new OutputLogEvent().withMessage("entry 2").withTimestamp(5L).withIngestionTime(7L)));
+
+        c.pollForLogs(listener);
+        assertEquals(Arrays.asList("entry 1", "expired token"), c.getLatestLogs());
+        assertNull(c.getNextForwardToken());
+
+        c.pollForLogs(listener);
+        assertEquals(Arrays.asList("entry 2"), c.getLatestLogs());
+    }
+
+    @Test
+    public void testForwardTokenEventsAreAllKept() throws Exception {
+        CloudWatchMonitor c = getMockCloudWatchMonitor();
+
+        GetLogEventsRequest requestFirst = new GetLogEventsRequest().withStartTime(0L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestSecond = new GetLogEventsRequest().withNextToken("f/1").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestThird = new GetLogEventsRequest().withNextToken("f/2").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+
+        when(mockClient.getLogEvents(requestFirst)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/1")
+                .withEvents(new OutputLogEvent().withMessage(".").withTimestamp(5L).withIngestionTime(6L),
+                        new OutputLogEvent().withMessage(".").withTimestamp(5L).withIngestionTime(6L)));
+        // Out of timestamp order, and the same line again.
+        when(mockClient.getLogEvents(requestSecond)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/2")
+                .withEvents(new OutputLogEvent().withMessage("late").withTimestamp(4L).withIngestionTime(7L),
+                        new OutputLogEvent().withMessage(".").withTimestamp(5L).withIngestionTime(6L)));
+        when(mockClient.getLogEvents(requestThird)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/2")
+                .withEvents(new ArrayList<OutputLogEvent>()));
+
+        c.pollForLogs(listener);
+
+        assertEquals(Arrays.asList(".", ".", "late", "."), c.getLatestLogs());
+        assertEquals(Long.valueOf(5L), c.getLastEventTime());
+    }
+
+    @Test
+    public void testResumeAfterErrorKeepsRepeatedLines() throws Exception {
+        CloudWatchMonitor c = getMockCloudWatchMonitor();
+
+        GetLogEventsRequest requestFirst = new GetLogEventsRequest().withStartTime(0L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestToken = new GetLogEventsRequest().withNextToken("f/1").withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+        GetLogEventsRequest requestResume = new GetLogEventsRequest().withStartTime(5L).withStartFromHead(true).withLogGroupName(mockGroup).withLogStreamName(mockStream);
+
+        OutputLogEvent dot = new OutputLogEvent().withMessage(".").withTimestamp(5L).withIngestionTime(6L);
+        when(mockClient.getLogEvents(requestFirst)).thenReturn(new GetLogEventsResult().withNextForwardToken("f/1").withEvents(dot, dot));
+        when(mockClient.getLogEvents(requestToken)).thenThrow(new InvalidInputException("expired token"));
+        when(mockClient.getLogEvents(requestResume)).thenReturn(new GetLogEventsResult().withEvents(dot, dot, dot));
+
+        c.pollForLogs(listener);
+        assertEquals(Arrays.asList(".", ".", "expired token"), c.getLatestLogs());
+
+        c.pollForLogs(listener);
+        assertEquals(Arrays.asList("."), c.getLatestLogs());
     }
 
     @Test
@@ -18,19 +18,28 @@ import com.amazonaws.services.codebuild.model.BuildPhase;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class CodeBuildActionTest {
 
     private Run<?, ?> build = mock(AbstractBuild.class);
     CodeBuildAction action;
 
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
     @Before
     public void SetUp() {
         action = new CodeBuildAction(build);
@@ -92,4 +101,55 @@ public class CodeBuildActionTest {
         assert(r.get(2).getPhaseStatus().equals("SUCCEEDED"));
         assert(r.get(2).getDurationInSeconds().equals(0L));
     }
+
+    private List<String> lines(int from, int to) {
+        List<String> lines = new ArrayList<>();
+        for(int i = from; i < to; i++) {
+            lines.add("line " + i);
+        }
+        return lines;
+    }
+
+    @Test
+    public void testLogsInMemoryAreBounded() {
+        action.setLogs(new ArrayList<String>());
+        action.updateLogs(lines(0, CodeBuildAction.MAX_LOG_LINES_IN_MEMORY + 10));
+
+        List<String> logs = action.getLogs();
+        assertEquals(CodeBuildAction.MAX_LOG_LINES_IN_MEMORY, logs.size());
+        assertEquals("line 10", logs.get(0));
+    }
+
+    @Test
+    public void testFullLogIsPagedFromDisk() throws Exception {
+        when(build.getRootDir()).thenReturn(rootDir.getRoot());
+        action.setBuildId("project:1234");
+        action.setLogs(new ArrayList<String>());
+
+        action.updateLogs(lines(0, CodeBuildAction.LOG_PAGE_SIZE));
+        action.updateLogs(lines(CodeBuildAction.LOG_PAGE_SIZE, CodeBuildAction.LOG_PAGE_SIZE + 5));
+
+        File logFile = action.getLogFile();
+        assertEquals(new File(rootDir.getRoot(), "codebuild-1234.log.gz"), logFile);
+        assertTrue(logFile.exists());
+        assertEquals(2, action.getLogPageCount());
+        assertEquals(lines(0, CodeBuildAction.LOG_PAGE_SIZE), action.getLogPage("1"));
+        assertEquals(lines(CodeBuildAction.LOG_PAGE_SIZE, CodeBuildAction.LOG_PAGE_SIZE + 5), action.getLogPage("2"));
+        assertEquals(action.getLogPage("2"), action.getLogPage("last"));
+    }
+
+    @Test
+    public void testStatusMessagesAreNotWrittenToLogFile() throws Exception {
+        when(build.getRootDir()).thenReturn(rootDir.getRoot());
+        action.setBuildId("project:1234");
+        action.setLogs(new ArrayList<String>());
+
+        action.updateLogs(Arrays.asList(CloudWatchMonitor.noLogsMessage));
+        assertEquals(0, action.getLogPageCount());
+        assertFalse(action.getLogFile().exists());
+
+        action.updateLogs(Arrays.asList("entry"));
+        assertEquals(Arrays.asList("entry"), action.getLogs());
+        assertEquals(Arrays.asList("entry"), action.getLogPage("1"));
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.codebuild.jenkinsplugin.CodeBuildBaseCredentials;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CodeBuildBaseCredentialsTest {
+
+    // Counts the AssumeRole calls instead of calling STS. Every call returns credentials valid for the given time.
+    private static class CountingCredentials extends CodeBuildBaseCredentials {
+        private final AtomicInteger assumeRoleCalls = new AtomicInteger();
+        private volatile long validity;
+        private volatile CountDownLatch assumeRoleStarted = new CountDownLatch(1);
+        private volatile CountDownLatch assumeRoleCanReturn = new CountDownLatch(0);
+        private volatile String assumeRoleThread;
+
+        CountingCredentials(long validity) {
+            super(CredentialsScope.GLOBAL, "id", "description", "accessKey", "secretKey", "", "", "arn:aws:iam::123456789012:role/role", "");
+            this.validity = validity;
+        }
+
+        @Override
+        protected Credentials assumeRole() {
+            int call = assumeRoleCalls.incrementAndGet();
+            assumeRoleThread = Thread.currentThread().getName();
+            assumeRoleStarted.countDown();
+            try {
+                assumeRoleCanReturn.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Credentials("roleAccessKey" + call, "roleSecretKey", "token",
+                    new Date(System.currentTimeMillis() + validity));
+        }
+    }
+
+    @Test
+    public void testRoleIsAssumedOnceForConcurrentBuilds() throws Exception {
+        final CountingCredentials credentials = new CountingCredentials(TimeUnit.HOURS.toMillis(1));
+        credentials.assumeRoleCanReturn = new CountDownLatch(1);
+
+        List<Thread> builds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread build = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    credentials.getCredentials();
+                }
+            });
+            build.start();
+            builds.add(build);
+        }
+        credentials.assumeRoleStarted.await();
+        credentials.assumeRoleCanReturn.countDown();
+        for (Thread build : builds) {
+            build.join();
+        }
+
+        assertEquals(1, credentials.assumeRoleCalls.get());
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+        assertEquals(1, credentials.assumeRoleCalls.get());
+    }
+
+    @Test
+    public void testCredentialsAreRefreshedInTheBackgroundBeforeTheyExpire() throws Exception {
+        CountingCredentials credentials = new CountingCredentials(CodeBuildBaseCredentials.REFRESH_AHEAD - TimeUnit.MINUTES.toMillis(1));
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+
+        // The credentials expire soon, but not too soon to use: they are returned while the next ones are requested.
+        credentials.validity = TimeUnit.HOURS.toMillis(1);
+        credentials.assumeRoleStarted = new CountDownLatch(1);
+        credentials.assumeRoleCanReturn = new CountDownLatch(1);
+        AWSSessionCredentials current = (AWSSessionCredentials) credentials.getCredentials();
+        assertEquals("roleAccessKey1", current.getAWSAccessKeyId());
+        assertEquals("token", current.getSessionToken());
+
+        assertTrue(credentials.assumeRoleStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(credentials.assumeRoleThread.startsWith("CodeBuild credentials refresh"));
+        credentials.assumeRoleCanReturn.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!"roleAccessKey2".equals(credentials.getCredentials().getAWSAccessKeyId()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("roleAccessKey2", credentials.getCredentials().getAWSAccessKeyId());
+        assertEquals(2, credentials.assumeRoleCalls.get());
+    }
+
+    @Test
+    public void testExpiredCredentialsAreRefreshedBeforeUse() {
+        CountingCredentials credentials = new CountingCredentials(TimeUnit.MINUTES.toMillis(1));
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+
+        credentials.validity = TimeUnit.HOURS.toMillis(1);
+
+        assertEquals("roleAccessKey2", credentials.getCredentials().getAWSAccessKeyId());
+    }
+
+    @Test
+    public void testReleasedCredentialsAreNotRefreshedInTheBackground() throws Exception {
+        CountingCredentials credentials = new CountingCredentials(CodeBuildBaseCredentials.REFRESH_AHEAD - TimeUnit.MINUTES.toMillis(1));
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+
+        credentials.release();
+        credentials.assumeRoleStarted = new CountDownLatch(1);
+
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+        assertFalse(credentials.assumeRoleStarted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, credentials.assumeRoleCalls.get());
+    }
+
+    @Test
+    public void testReleasedCredentialsAreStillRefreshedBeforeUse() {
+        CountingCredentials credentials = new CountingCredentials(TimeUnit.MINUTES.toMillis(1));
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+
+        // A build may still use credentials that have been replaced.
+        credentials.release();
+
+        assertEquals("roleAccessKey2", credentials.getCredentials().getAWSAccessKeyId());
+    }
+
+    @Test
+    public void testCredentialsForAgentsAreValidForTheTransfer() {
+        CountingCredentials credentials = new CountingCredentials(TimeUnit.MINUTES.toMillis(20));
+        assertEquals("roleAccessKey1", credentials.getCredentials().getAWSAccessKeyId());
+
+        // Valid long enough for a build, but not for a transfer the agent can't refresh them during.
+        credentials.validity = TimeUnit.HOURS.toMillis(1);
+        assertEquals("roleAccessKey2", credentials.getCredentialsValidFor(TimeUnit.MINUTES.toMillis(30)).getAWSAccessKeyId());
+        assertEquals("roleAccessKey2", credentials.getCredentialsValidFor(TimeUnit.MINUTES.toMillis(30)).getAWSAccessKeyId());
+        assertEquals(2, credentials.assumeRoleCalls.get());
+    }
+}
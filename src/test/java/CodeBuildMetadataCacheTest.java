@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codebuild.AWSCodeBuildClient;
+import com.amazonaws.services.codebuild.model.BatchGetProjectsRequest;
+import com.amazonaws.services.codebuild.model.BatchGetProjectsResult;
+import com.amazonaws.services.codebuild.model.Project;
+import com.amazonaws.services.codebuild.model.ProjectSource;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CodeBuildMetadataCacheTest {
+
+    private final AWSCodeBuildClient cbClient = mock(AWSCodeBuildClient.class);
+    private final AmazonS3Client s3Client = mock(AmazonS3Client.class);
+    private final AWSClientFactory awsClientFactory = mock(AWSClientFactory.class);
+    private final ProjectSource source = new ProjectSource().withType("S3").withLocation("arn:aws:s3:::bucket/source.zip");
+
+    @Before
+    public void setUp() throws Exception {
+        CodeBuildMetadataCache.invalidate();
+        when(cbClient.batchGetProjects(any(BatchGetProjectsRequest.class)))
+                .thenReturn(new BatchGetProjectsResult().withProjects(new Project().withSource(source)));
+        when(awsClientFactory.getS3Client()).thenReturn(s3Client);
+        when(s3Client.getBucketVersioningConfiguration("bucket"))
+                .thenReturn(new BucketVersioningConfiguration(BucketVersioningConfiguration.ENABLED));
+    }
+
+    @Test
+    public void testProjectSourceIsCachedPerKey() throws Exception {
+        assertEquals(source, CodeBuildMetadataCache.getProjectSource("account@us-east-1", "project", cbClient));
+        assertEquals(source, CodeBuildMetadataCache.getProjectSource("account@us-east-1", "project", cbClient));
+        verify(cbClient, times(1)).batchGetProjects(any(BatchGetProjectsRequest.class));
+
+        CodeBuildMetadataCache.getProjectSource("account@us-west-2", "project", cbClient);
+        CodeBuildMetadataCache.getProjectSource("account@us-east-1", "other project", cbClient);
+        verify(cbClient, times(3)).batchGetProjects(any(BatchGetProjectsRequest.class));
+    }
+
+    @Test
+    public void testProjectSourceExpires() throws Exception {
+        CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+
+        CodeBuildMetadataCache.evictExpired(System.currentTimeMillis() + CodeBuildMetadataCache.TTL);
+        CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+
+        verify(cbClient, times(2)).batchGetProjects(any(BatchGetProjectsRequest.class));
+    }
+
+    @Test
+    public void testMissingProjectIsCachedForLessTime() throws Exception {
+        when(cbClient.batchGetProjects(any(BatchGetProjectsRequest.class))).thenReturn(new BatchGetProjectsResult());
+        assertNull(CodeBuildMetadataCache.getProjectSource("key", "project", cbClient));
+        assertNull(CodeBuildMetadataCache.getProjectSource("key", "project", cbClient));
+        verify(cbClient, times(1)).batchGetProjects(any(BatchGetProjectsRequest.class));
+
+        CodeBuildMetadataCache.evictExpired(System.currentTimeMillis() + CodeBuildMetadataCache.NEGATIVE_TTL);
+        CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+
+        verify(cbClient, times(2)).batchGetProjects(any(BatchGetProjectsRequest.class));
+    }
+
+    @Test
+    public void testFailedLookupIsNotCached() throws Exception {
+        when(cbClient.batchGetProjects(any(BatchGetProjectsRequest.class)))
+                .thenThrow(new AmazonServiceException("throttled"))
+                .thenReturn(new BatchGetProjectsResult().withProjects(new Project().withSource(source)));
+        try {
+            CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+            fail("Lookup should fail");
+        } catch (AmazonServiceException e) {
+            assertTrue(e.getMessage().startsWith("throttled"));
+        }
+
+        assertEquals(source, CodeBuildMetadataCache.getProjectSource("key", "project", cbClient));
+    }
+
+    @Test
+    public void testInvalidatedProjectIsLookedUpAgain() throws Exception {
+        CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+
+        CodeBuildMetadataCache.invalidateProject("key", "project");
+        CodeBuildMetadataCache.getProjectSource("key", "project", cbClient);
+
+        verify(cbClient, times(2)).batchGetProjects(any(BatchGetProjectsRequest.class));
+    }
+
+    @Test
+    public void testBucketVersioningIsCached() throws Exception {
+        assertTrue(CodeBuildMetadataCache.getValue(CodeBuildMetadataCache.isBucketVersioned("key", "bucket", awsClientFactory)));
+        assertTrue(CodeBuildMetadataCache.getValue(CodeBuildMetadataCache.isBucketVersioned("key", "bucket", awsClientFactory)));
+
+        verify(s3Client, times(1)).getBucketVersioningConfiguration("bucket");
+    }
+
+    @Test
+    public void testUnversionedBucketIsLookedUpAgainAfterInvalidation() throws Exception {
+        when(s3Client.getBucketVersioningConfiguration("bucket"))
+                .thenReturn(new BucketVersioningConfiguration(BucketVersioningConfiguration.SUSPENDED))
+                .thenReturn(new BucketVersioningConfiguration(BucketVersioningConfiguration.ENABLED));
+        assertFalse(CodeBuildMetadataCache.getValue(CodeBuildMetadataCache.isBucketVersioned("key", "bucket", awsClientFactory)));
+
+        CodeBuildMetadataCache.invalidateBucket("key", "bucket");
+
+        assertTrue(CodeBuildMetadataCache.getValue(CodeBuildMetadataCache.isBucketVersioned("key", "bucket", awsClientFactory)));
+    }
+
+    @Test
+    public void testBucketVersioningIsLookedUpOnCacheThreads() throws Exception {
+        final String[] lookupThread = new String[1];
+        when(s3Client.getBucketVersioningConfiguration("bucket")).then(new Answer<BucketVersioningConfiguration>() {
+            public BucketVersioningConfiguration answer(InvocationOnMock invocation) {
+                lookupThread[0] = Thread.currentThread().getName();
+                return new BucketVersioningConfiguration(BucketVersioningConfiguration.ENABLED);
+            }
+        });
+
+        assertTrue(CodeBuildMetadataCache.getValue(CodeBuildMetadataCache.isBucketVersioned("key", "bucket", awsClientFactory)));
+        assertTrue(lookupThread[0].startsWith("CodeBuild metadata lookup"));
+    }
+}
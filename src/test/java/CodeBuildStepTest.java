@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CodeBuildStepTest {
+
+    private final CodeBuilder builder = mock(CodeBuilder.class);
+    private final StepContext context = mock(StepContext.class);
+    private final Run<?, ?> run = mock(Run.class);
+    private final TaskListener listener = mock(TaskListener.class);
+    private final FilePath ws = new FilePath(new File("/path/to"));
+    private final CodeBuildResult result = new CodeBuildResult();
+    private CodeBuildStep.CodeBuildExecution execution;
+
+    @Before
+    public void setUp() {
+        execution = new CodeBuildStep.CodeBuildExecution();
+        Whitebox.setInternalState(execution, "context", context);
+        Whitebox.setInternalState(execution, "builder", builder);
+        Whitebox.setInternalState(execution, "run", run);
+        Whitebox.setInternalState(execution, "listener", listener);
+        Whitebox.setInternalState(execution, "ws", ws);
+        Whitebox.setInternalState(execution, "auth", ACL.SYSTEM);
+        when(builder.getCodeBuildResult()).thenReturn(result);
+    }
+
+    @Test
+    public void testScheduledPollCompletesStep() throws Exception {
+        final CountDownLatch completed = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                completed.countDown();
+                return null;
+            }
+        }).when(context).onSuccess(any());
+        when(builder.pollBuild(run, listener)).thenReturn(true, false);
+        when(builder.getPollingInterval()).thenReturn(0L);
+        result.setSuccess();
+
+        Whitebox.invokeMethod(execution, "schedulePoll", 0L);
+
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        verify(builder, times(2)).pollBuild(run, listener);
+        verify(builder).completeBuild(run, ws, listener);
+        verify(builder, atLeastOnce()).releaseBuild();
+        verify(context).onSuccess(result);
+    }
+
+    @Test
+    public void testAbortedPollingErrorReleasesBuild() throws Exception {
+        Exception error = new Exception("boom");
+        when(builder.pollBuild(run, listener)).thenThrow(error);
+        when(builder.handlePollingError(run, listener, error)).thenThrow(new AbortException("Error while polling build: boom"));
+        result.setFailure("Error while polling build: boom", "");
+
+        Whitebox.invokeMethod(execution, "poll");
+
+        verify(builder).releaseBuild();
+        verify(context).onFailure(any(CodeBuildException.class));
+    }
+
+    @Test
+    public void testFailedCompletionReleasesBuild() throws Exception {
+        RuntimeException error = new RuntimeException("boom");
+        when(builder.pollBuild(run, listener)).thenReturn(false);
+        doThrow(error).when(builder).completeBuild(run, ws, listener);
+
+        Whitebox.invokeMethod(execution, "poll");
+
+        verify(builder, atLeastOnce()).releaseBuild();
+        verify(context).onFailure(error);
+    }
+
+    @Test
+    public void testStoppedStepIsNotCompletedByPoll() throws Exception {
+        when(builder.pollBuild(run, listener)).thenReturn(false);
+        execution.stop(new Exception("stopped"));
+
+        Whitebox.invokeMethod(execution, "poll");
+
+        verify(builder, never()).completeBuild(run, ws, listener);
+        verify(context, never()).onSuccess(any());
+    }
+}
@@ -16,16 +16,19 @@
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.codebuild.model.*;
+import enums.*;
 
 import hudson.AbortException;
 import hudson.model.Result;
 import hudson.util.Secret;
+import net.sf.json.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.ArgumentCaptor;
 import org.junit.runner.RunWith;
+import org.kohsuke.stapler.StaplerRequest;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -34,6 +37,9 @@ import java.util.Date;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -62,6 +68,28 @@ public class CodeBuilderEndToEndPerformTest extends CodeBuilderTest {
         assertEquals(CodeBuildResult.SUCCESS, result.getStatus());
     }
 
+    @Test
+    public void testLocalWorkspaceArtifactsAreDownloadedOnController() throws Exception {
+        j.jenkins.getDescriptorByType(CodeBuilder.DescriptorImpl.class).configure(mock(StaplerRequest.class), new JSONObject().element("agentTransfers", true));
+        CodeBuilder test = new CodeBuilder("keys", "id123", "host", "60", "a", awsSecretKey, "",
+                "us-east-1", "existingProject", "sourceVersion", "", SourceControlType.ProjectSource.toString(), "", "",
+                GitCloneDepth.One.toString(), BooleanValue.False.toString(), "", "", ArtifactsType.NO_ARTIFACTS.toString(), "", "", "", "",
+                "", BooleanValue.False.toString(), BooleanValue.False.toString(), "", "[{k, v}]", "[{k, p}]",
+                "buildspec.yml", "5", SourceType.GITHUB_ENTERPRISE.toString(), "https://1.0.0.0.86/my_repo",
+                EnvironmentType.LINUX_CONTAINER.toString(), "aws/codebuild/openjdk-8", ComputeType.BUILD_GENERAL1_SMALL.toString(), CacheType.NO_CACHE.toString(), "", "",
+                LogsConfigStatusType.ENABLED.toString(), "group", "stream", LogsConfigStatusType.ENABLED.toString(), "", "location",
+                "arn:aws:s3:::my_bucket/certificate.pem", "my_service_role", BooleanValue.False.toString(), BooleanValue.False.toString(), BooleanValue.False.toString(), "", BooleanValue.True.toString(), "artifacts");
+        ArgumentCaptor<Result> savedResult = ArgumentCaptor.forClass(Result.class);
+
+        test.perform(build, ws, launcher, listener, mockStepContext);
+
+        // The workspace is on the controller: the artifacts are downloaded in-process, without sending the credentials anywhere.
+        verify(mockFactory, never()).getAgentS3ClientConfig();
+        verify(mockFactory, atLeastOnce()).getS3Client();
+        verify(build).setResult(savedResult.capture());
+        assertEquals(savedResult.getValue(), Result.SUCCESS);
+    }
+
     @Test
     public void testBuildThenWaitThenSuccess() throws Exception {
         Build inProgress = new Build().withArtifacts(new BuildArtifacts()).withBuildStatus(StatusType.IN_PROGRESS).withStartTime(new Date(1));
@@ -147,5 +147,6 @@ public class CodeBuilderTest {
         log = new ByteArrayOutputStream();
         PrintStream p = new PrintStream(log);
         when(listener.getLogger()).thenReturn(p);
+        CodeBuildMetadataCache.invalidate();
     }
 }
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class MultipartUploadOutputStreamTest {
+
+    private static final int partSize = (int) S3UploadCallable.MIN_PART_SIZE;
+
+    private AmazonS3 s3Client = mock(AmazonS3.class);
+
+    private Answer<UploadPartResult> partETag = new Answer<UploadPartResult>() {
+        public UploadPartResult answer(InvocationOnMock invocation) {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(new InitiateMultipartUploadResult());
+        CompleteMultipartUploadResult complete = new CompleteMultipartUploadResult();
+        complete.setVersionId("multipart-version");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(complete);
+        PutObjectResult put = new PutObjectResult();
+        put.setVersionId("put-version");
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(put);
+    }
+
+    private MultipartUploadOutputStream newStream() {
+        return new MultipartUploadOutputStream(s3Client, "bucket", "key", true, partSize, 2);
+    }
+
+    @Test
+    public void testShortContentIsPut() throws Exception {
+        MultipartUploadOutputStream out = newStream();
+        out.write("source".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals("put-version", out.complete());
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture());
+        assertEquals(S3DataManager.encodeMD5(DigestUtils.md5("source")), request.getValue().getMetadata().getContentMD5());
+        assertEquals(6L, request.getValue().getMetadata().getContentLength());
+        assertEquals(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION, request.getValue().getMetadata().getSSEAlgorithm());
+        verify(s3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testLongContentIsUploadedInParts() throws Exception {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).then(partETag);
+        MultipartUploadOutputStream out = newStream();
+        byte[] chunk = new byte[1024 * 1024];
+        for(int i = 0; i < 2 * partSize / chunk.length; i++) {
+            out.write(chunk);
+        }
+        out.write(1);
+        out.close();
+
+        assertEquals("multipart-version", out.complete());
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client, times(3)).uploadPart(parts.capture());
+        long uploaded = 0;
+        for(UploadPartRequest part: parts.getAllValues()) {
+            assertNotNull(part.getMd5Digest());
+            uploaded += part.getPartSize();
+        }
+        assertEquals(2L * partSize + 1, uploaded);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(complete.capture());
+        List<PartETag> etags = complete.getValue().getPartETags();
+        assertEquals(3, etags.size());
+        for(int i = 0; i < etags.size(); i++) {
+            assertEquals(i + 1, etags.get(i).getPartNumber());
+        }
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenThrow(new RuntimeException("connection reset"));
+        MultipartUploadOutputStream out = newStream();
+        out.write(new byte[partSize]);
+
+        try {
+            out.complete();
+            fail("Expected exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("connection reset"));
+        }
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testWriteAfterCloseFails() throws Exception {
+        MultipartUploadOutputStream out = newStream();
+        out.close();
+
+        try {
+            out.write(1);
+            fail("Expected exception");
+        } catch (IOException e) {
+            assertEquals("Stream closed", e.getMessage());
+        }
+    }
+}
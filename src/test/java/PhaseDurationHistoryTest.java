@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.services.codebuild.model.BuildPhase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PhaseDurationHistoryTest {
+
+    private static final long NOW = 1000000000L;
+
+    @Before
+    public void setUp() {
+        PhaseDurationHistory.clear();
+    }
+
+    private BuildPhase completedPhase(String type, String status, long durationInSeconds) {
+        return new BuildPhase().withPhaseType(type).withPhaseStatus(status).withDurationInSeconds(durationInSeconds);
+    }
+
+    private BuildPhase runningPhase(String type, long elapsed) {
+        return new BuildPhase().withPhaseType(type).withStartTime(new Date(NOW - elapsed));
+    }
+
+    @Test
+    public void testUnknownPhaseHasNoRemainingTime() {
+        assertNull(PhaseDurationHistory.getRemainingTime("project", runningPhase("BUILD", 0), NOW));
+        assertNull(PhaseDurationHistory.getRemainingTime("project", null, NOW));
+    }
+
+    @Test
+    public void testRemainingTimeOfRunningPhase() {
+        PhaseDurationHistory.record("project", Arrays.asList(
+                completedPhase("PROVISIONING", "SUCCEEDED", 40),
+                completedPhase("POST_BUILD", "SUCCEEDED", 30)));
+
+        long elapsed = TimeUnit.SECONDS.toMillis(25);
+        assertEquals(Long.valueOf(TimeUnit.SECONDS.toMillis(5)), PhaseDurationHistory.getRemainingTime("project", runningPhase("POST_BUILD", elapsed), NOW));
+        assertEquals(Long.valueOf(TimeUnit.SECONDS.toMillis(15)), PhaseDurationHistory.getRemainingTime("project", runningPhase("PROVISIONING", elapsed), NOW));
+        assertNull(PhaseDurationHistory.getRemainingTime("other project", runningPhase("POST_BUILD", elapsed), NOW));
+    }
+
+    @Test
+    public void testLatePhaseHasNegativeRemainingTime() {
+        PhaseDurationHistory.record("project", Collections.singletonList(completedPhase("BUILD", "SUCCEEDED", 60)));
+
+        assertTrue(PhaseDurationHistory.getRemainingTime("project", runningPhase("BUILD", TimeUnit.SECONDS.toMillis(90)), NOW) < 0);
+    }
+
+    @Test
+    public void testEndedPhaseHasNoRemainingTime() {
+        PhaseDurationHistory.record("project", Collections.singletonList(completedPhase("BUILD", "SUCCEEDED", 60)));
+
+        assertNull(PhaseDurationHistory.getRemainingTime("project", runningPhase("BUILD", 0).withEndTime(new Date(NOW)), NOW));
+    }
+
+    @Test
+    public void testExpectedDurationIsAveraged() {
+        PhaseDurationHistory.record("project", Collections.singletonList(completedPhase("BUILD", "SUCCEEDED", 100)));
+        PhaseDurationHistory.record("project", Collections.singletonList(completedPhase("BUILD", "SUCCEEDED", 200)));
+
+        long expected = Math.round(PhaseDurationHistory.WEIGHT * 200000 + (1 - PhaseDurationHistory.WEIGHT) * 100000);
+        assertEquals(Long.valueOf(expected), PhaseDurationHistory.getRemainingTime("project", runningPhase("BUILD", 0), NOW));
+    }
+
+    @Test
+    public void testFailedPhasesAreNotRecorded() {
+        PhaseDurationHistory.record("project", Collections.singletonList(completedPhase("BUILD", "FAILED", 5)));
+        PhaseDurationHistory.record("project", null);
+
+        assertNull(PhaseDurationHistory.getRemainingTime("project", runningPhase("BUILD", 0), NOW));
+    }
+}
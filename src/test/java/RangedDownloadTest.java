@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class RangedDownloadTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "artifacts/output.zip";
+    private static final long RANGE_SIZE = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] contents = "0123456789".getBytes(StandardCharsets.UTF_8);
+    private final String sha256sum = DigestUtils.sha256Hex(contents);
+    private final AmazonS3 s3Client = mock(AmazonS3.class);
+    // The first byte of every range requested, in order.
+    private final List<Long> requestedRanges = Collections.synchronizedList(new ArrayList<Long>());
+    // The first byte of the ranges that fail every time they are requested.
+    private final Set<Long> failingRanges = new HashSet<>();
+    private long originalRetryDelay;
+    private File file;
+
+    private final Answer<S3Object> rangeOfContents = new Answer<S3Object>() {
+        @Override
+        public S3Object answer(InvocationOnMock invocation) {
+            long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+            requestedRanges.add(range[0]);
+            if(failingRanges.contains(range[0])) {
+                throw new AmazonClientException("connection reset");
+            }
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(contents, (int) range[0], (int) range[1] + 1)));
+            return object;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        originalRetryDelay = RangedDownload.retryDelay;
+        RangedDownload.retryDelay = 0;
+        file = new File(folder.newFolder("artifacts"), "output.zip");
+        mockObject("etag");
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(rangeOfContents);
+    }
+
+    @After
+    public void tearDown() {
+        RangedDownload.retryDelay = originalRetryDelay;
+    }
+
+    private void mockObject(String eTag) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contents.length);
+        metadata.setHeader("ETag", eTag);
+        when(s3Client.getObjectMetadata(BUCKET, KEY)).thenReturn(metadata);
+    }
+
+    private RangedDownload download(String sha256sum) throws Exception {
+        RangedDownload download = new RangedDownload(s3Client, BUCKET, KEY, file, sha256sum, RANGE_SIZE, null);
+        download.start();
+        download.waitForCompletion();
+        return download;
+    }
+
+    private File partFile() {
+        return new File(file.getPath() + RangedDownload.PART_SUFFIX);
+    }
+
+    private File rangesFile() {
+        return new File(partFile().getPath() + RangedDownload.RANGES_SUFFIX);
+    }
+
+    @Test
+    public void testDownloadsEveryRange() throws Exception {
+        download(sha256sum);
+
+        assertArrayEquals(contents, FileUtils.readFileToByteArray(file));
+        assertEquals(new HashSet<>(Arrays.asList(0L, 4L, 8L)), new HashSet<>(requestedRanges));
+        assertFalse(partFile().exists());
+        assertFalse(rangesFile().exists());
+    }
+
+    @Test
+    public void testDownloadsRangesConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            RangedDownload download = new RangedDownload(s3Client, BUCKET, KEY, file, sha256sum, RANGE_SIZE, executor);
+            download.start();
+            download.waitForCompletion();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertArrayEquals(contents, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testFailedRangeIsRetried() throws Exception {
+        when(s3Client.getObject(any(GetObjectRequest.class)))
+                .thenThrow(new AmazonClientException("connection reset"))
+                .thenAnswer(rangeOfContents);
+
+        download(sha256sum);
+
+        assertArrayEquals(contents, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testFailedDownloadResumesFromCompletedRanges() throws Exception {
+        failingRanges.add(8L);
+        try {
+            download(sha256sum);
+            fail("Download should fail");
+        } catch (AmazonClientException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+        assertFalse(file.exists());
+        assertTrue(partFile().exists());
+        assertEquals(RangedDownload.MAX_ATTEMPTS, Collections.frequency(requestedRanges, 8L));
+
+        failingRanges.clear();
+        requestedRanges.clear();
+        RangedDownload download = download(sha256sum);
+
+        assertEquals(2, download.getResumedRanges());
+        assertEquals(Collections.singletonList(8L), requestedRanges);
+        assertArrayEquals(contents, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testChangedObjectIsDownloadedAgain() throws Exception {
+        failingRanges.add(8L);
+        try {
+            download(sha256sum);
+            fail("Download should fail");
+        } catch (AmazonClientException e) {
+            // Expected
+        }
+
+        failingRanges.clear();
+        requestedRanges.clear();
+        mockObject("new etag");
+        RangedDownload download = download(sha256sum);
+
+        assertEquals(0, download.getResumedRanges());
+        assertEquals(new HashSet<>(Arrays.asList(0L, 4L, 8L)), new HashSet<>(requestedRanges));
+    }
+
+    @Test
+    public void testChecksumMismatchLeavesNothingBehind() throws Exception {
+        try {
+            download(DigestUtils.sha256Hex("something else"));
+            fail("Download should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith(RangedDownload.sha256MismatchError));
+        }
+
+        assertFalse(file.exists());
+        assertFalse(partFile().exists());
+        assertFalse(rangesFile().exists());
+    }
+
+    @Test
+    public void testExistingFileIsReplaced() throws Exception {
+        FileUtils.writeStringToFile(file, "previous build");
+
+        download(sha256sum);
+
+        assertArrayEquals(contents, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testRejectedRangeReleasesDownload() throws Exception {
+        // Accepts the first range without running it, then rejects the next one.
+        final List<Runnable> accepted = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if(!accepted.isEmpty()) {
+                    throw new RejectedExecutionException("shutting down");
+                }
+                accepted.add(command);
+            }
+        };
+        RangedDownload download = new RangedDownload(s3Client, BUCKET, KEY, file, sha256sum, RANGE_SIZE, executor);
+
+        try {
+            download.start();
+            fail("Download should fail");
+        } catch (RejectedExecutionException e) {
+            assertEquals("shutting down", e.getMessage());
+        }
+
+        assertTrue(((Future<?>) accepted.get(0)).isCancelled());
+        assertFalse(((FileChannel) Whitebox.getInternalState(download, "channel")).isOpen());
+        // The ranges file is closed too: nothing more can be written to it.
+        try {
+            ((Writer) Whitebox.getInternalState(download, "rangesWriter")).flush();
+            fail("Ranges file should be closed");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
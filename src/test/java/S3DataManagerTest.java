@@ -16,6 +16,8 @@
 
 import com.amazonaws.services.codebuild.model.InvalidInputException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import enums.EncryptionAlgorithm;
@@ -29,6 +31,7 @@ import hudson.scm.SCM;
 import net.lingala.zip4j.ZipFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,15 +40,19 @@ import org.mockito.ArgumentCaptor;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
 import static org.junit.Assume.assumeFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -233,6 +240,51 @@ public class S3DataManagerTest {
     }
 
 
+    @Test
+    public void testUnchangedSourceIsNotUploadedAgain() throws Exception {
+        File file = new File(mockWorkspaceDir + "/source-file");
+        FileUtils.write(file, "contents");
+        SourceUploadCache cache = new SourceUploadCache();
+
+        S3DataManager d = createDefaultSource(file.getPath(), "");
+        d.setSourceUploadCache(cache);
+        assertEquals("some-version-id", d.uploadSourceToS3(listener, testWorkSpace).getObjectVersionId());
+        assertEquals("some-version-id", d.uploadSourceToS3(listener, testWorkSpace).getObjectVersionId());
+
+        verify(s3Client, times(1)).putObject(any(PutObjectRequest.class));
+        verify(s3Client, times(1)).getObjectMetadata(any(GetObjectMetadataRequest.class));
+    }
+
+    @Test
+    public void testChangedSourceIsUploadedAgain() throws Exception {
+        File file = new File(mockWorkspaceDir + "/source-file");
+        FileUtils.write(file, "contents");
+        SourceUploadCache cache = new SourceUploadCache();
+
+        S3DataManager d = createDefaultSource(file.getPath(), "");
+        d.setSourceUploadCache(cache);
+        d.uploadSourceToS3(listener, testWorkSpace);
+        FileUtils.write(file, "new contents");
+        d.uploadSourceToS3(listener, testWorkSpace);
+
+        verify(s3Client, times(2)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testMissingCachedVersionIsUploadedAgain() throws Exception {
+        File file = new File(mockWorkspaceDir + "/source-file");
+        FileUtils.write(file, "contents");
+        SourceUploadCache cache = new SourceUploadCache();
+        when(s3Client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenThrow(new AmazonS3Exception("Not Found"));
+
+        S3DataManager d = createDefaultSource(file.getPath(), "");
+        d.setSourceUploadCache(cache);
+        d.uploadSourceToS3(listener, testWorkSpace);
+        d.uploadSourceToS3(listener, testWorkSpace);
+
+        verify(s3Client, times(2)).putObject(any(PutObjectRequest.class));
+    }
+
     @Test
     public void testZipSourceEmptyDir() throws Exception {
         FileOutputStream out = new FileOutputStream("/tmp/source.zip");
@@ -581,6 +633,129 @@ public class S3DataManagerTest {
         assertEquals(0755, new FilePath(extractedScriptFile).mode() & 0777);
     }
 
+    @Test
+    public void testZipSourceMultipleThreads() throws Exception {
+        File dir = tempFolder.newFolder();
+        File subdir = new File(dir, "src");
+        subdir.mkdir();
+        for(int i = 0; i < 50; i++) {
+            FileUtils.write(new File(subdir, "file" + i + ".txt"), "contents of file " + i);
+        }
+
+        File zipFile = tempFolder.newFile("source.zip");
+        FileOutputStream out = new FileOutputStream(zipFile);
+        new ZipSourceCallable(new FilePath(dir), null, null, 4).zipSourceWithArchiver(out);
+        out.close();
+
+        File unzipFolder = tempFolder.newFolder();
+        new FilePath(zipFile).unzip(new FilePath(unzipFolder));
+        File extractedDir = new File(unzipFolder, "src");
+        assertEquals(50, extractedDir.list().length);
+        for(int i = 0; i < 50; i++) {
+            assertEquals("contents of file " + i, FileUtils.readFileToString(new File(extractedDir, "file" + i + ".txt")));
+        }
+    }
+
+    private File createDeterministicZipSource(String[] names, long mtime) throws Exception {
+        File dir = tempFolder.newFolder();
+        for(String name: names) {
+            File f = new File(dir, name);
+            FileUtils.write(f, "contents of " + name);
+            f.setLastModified(mtime);
+        }
+        return dir;
+    }
+
+    @Test
+    public void testZipSourceDeterministic() throws Exception {
+        File first = createDeterministicZipSource(new String[] {"b.txt", "src/a.txt", "a.txt"}, 1000000000000L);
+        File second = createDeterministicZipSource(new String[] {"a.txt", "src/a.txt", "b.txt"}, 1500000000000L);
+
+        File firstZip = tempFolder.newFile("first.zip");
+        File secondZip = tempFolder.newFile("second.zip");
+        String firstMD5 = new ZipSourceCallable(new FilePath(first), null, null, 4, true).invoke(firstZip, null);
+        String secondMD5 = new ZipSourceCallable(new FilePath(second), null, null, 1, true).invoke(secondZip, null);
+
+        assertEquals(firstMD5, secondMD5);
+        assertTrue(FileUtils.contentEquals(firstZip, secondZip));
+
+        File unzipFolder = tempFolder.newFolder();
+        new FilePath(secondZip).unzip(new FilePath(unzipFolder));
+        assertEquals("contents of src/a.txt", FileUtils.readFileToString(new File(unzipFolder, "src/a.txt")));
+    }
+
+    private File createCompressionSource() throws Exception {
+        File dir = tempFolder.newFolder();
+        String text = StringUtils.repeat("compressible ", 1000);
+        FileUtils.write(new File(dir, "text.txt"), text);
+        FileUtils.write(new File(dir, "lib/library.JAR"), text);
+        byte[] random = new byte[64 * 1024];
+        new Random(0).nextBytes(random);
+        FileUtils.writeByteArrayToFile(new File(dir, "random.bin"), random);
+        return dir;
+    }
+
+    private Map<String, Integer> zipEntryMethods(File dir, int compressionLevel, String storedExtensions) throws Exception {
+        File zipFile = tempFolder.newFile();
+        new ZipSourceCallable(new FilePath(dir), null, null, 2, false, compressionLevel, storedExtensions).invoke(zipFile, null);
+
+        Map<String, Integer> methods = new HashMap<>();
+        try(java.util.zip.ZipFile zip = new java.util.zip.ZipFile(zipFile)) {
+            for(ZipEntry entry: Collections.list(zip.entries())) {
+                if(!entry.isDirectory()) {
+                    methods.put(entry.getName(), entry.getMethod());
+                    assertEquals(new File(dir, entry.getName()).length(), entry.getSize());
+                }
+            }
+        }
+        return methods;
+    }
+
+    @Test
+    public void testZipSourceStoresExtensionsAndIncompressibleFiles() throws Exception {
+        Map<String, Integer> methods = zipEntryMethods(createCompressionSource(), 9, "*.jar, png");
+
+        assertEquals(3, methods.size());
+        assertEquals(ZipEntry.DEFLATED, (int) methods.get("text.txt"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("lib/library.JAR"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("random.bin"));
+    }
+
+    @Test
+    public void testZipSourceCompressionLevelZeroStoresEverything() throws Exception {
+        Map<String, Integer> methods = zipEntryMethods(createCompressionSource(), 0, null);
+
+        assertEquals(3, methods.size());
+        for(int method: methods.values()) {
+            assertEquals(ZipEntry.STORED, method);
+        }
+    }
+
+    @Test
+    public void testZipSourceInvokeHashesZipAndSkipsItself() throws Exception {
+        File dir = tempFolder.newFolder();
+        FileUtils.write(new File(dir, "buildspec.yml"), "version: 0.2");
+        File zipFile = new File(dir, "source.zip");
+
+        String md5 = new ZipSourceCallable(new FilePath(dir)).invoke(zipFile, null);
+        assertEquals(S3DataManager.getZipMD5(zipFile), md5);
+
+        File unzipFolder = tempFolder.newFolder();
+        new FilePath(zipFile).unzip(new FilePath(unzipFolder));
+        assertEquals(Arrays.asList("buildspec.yml"), Arrays.asList(unzipFolder.list()));
+    }
+
+    @Test
+    public void testLocalSourceInvokeHashesCopy() throws Exception {
+        File dir = tempFolder.newFolder();
+        FileUtils.write(new File(dir, "source.zip"), "zip contents");
+        File copy = tempFolder.newFile();
+
+        String md5 = new LocalSourceCallable(new FilePath(dir), "source.zip").invoke(copy, null);
+        assertEquals("zip contents", FileUtils.readFileToString(copy));
+        assertEquals(S3DataManager.getZipMD5(copy), md5);
+    }
+
     @Test
     public void testZipSourceIncludesExcludes() throws Exception {
         File dir = tempFolder.newFolder();
@@ -14,24 +14,30 @@
  *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
  */
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.codebuild.model.Build;
 import com.amazonaws.services.codebuild.model.BuildArtifacts;
 import com.amazonaws.services.codebuild.model.InvalidInputException;
 import com.amazonaws.services.codebuild.model.ProjectEnvironment;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.MultipleFileDownload;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import hudson.FilePath;
 import hudson.model.BuildListener;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -155,6 +161,29 @@ public class S3DownloaderTest {
         verify(multipleFileDownload, times(2)).waitForCompletion();
     }
 
+    @Test
+    public void testAllArtifactsAreStartedBeforeWaiting() throws Exception {
+        build = new Build().withArtifacts(zippedBuildArtifacts).withSecondaryArtifacts(getSecondaryArtifacts());
+        s3DownloaderWithMockTransferManager().downloadBuildArtifacts(listener, build, testWorkSpace.getRemote());
+
+        InOrder inOrder = inOrder(transferManager, mockDownload, multipleFileDownload);
+        inOrder.verify(transferManager).download(any(String.class), any(String.class), any(File.class));
+        inOrder.verify(transferManager, times(2)).downloadDirectory(any(String.class), any(String.class), any(File.class));
+        inOrder.verify(mockDownload).waitForCompletion();
+        inOrder.verify(multipleFileDownload, times(2)).waitForCompletion();
+        assertTrue(log.toString().contains("Downloaded 3 artifacts"));
+    }
+
+    @Test
+    public void testFailedArtifactDoesNotStopOthers() throws Exception {
+        doThrow(new AmazonServiceException("access denied")).when(mockDownload).waitForCompletion();
+        build = new Build().withArtifacts(zippedBuildArtifacts).withSecondaryArtifacts(getSecondaryArtifacts());
+        s3DownloaderWithMockTransferManager().downloadBuildArtifacts(listener, build, testWorkSpace.getRemote());
+
+        verify(multipleFileDownload, times(2)).waitForCompletion();
+        assertTrue(log.toString().contains("Download failed:access denied"));
+    }
+
     @Test
     public void testZippedArtifact() throws Exception {
         build = new Build().withArtifacts(zippedBuildArtifacts);
@@ -188,4 +217,68 @@ public class S3DownloaderTest {
         Assert.assertTrue(parentDir.exists());
         Assert.assertTrue(parentDir.isDirectory());
     }
+
+    @Test
+    public void testExtractZippedArtifact() throws Exception {
+        byte[] zip = zip("dir/a.txt", "contents of a", "b.txt", "contents of b");
+        mockGetObject(zip);
+        build = new Build().withArtifacts(new BuildArtifacts().withSha256sum(DigestUtils.sha256Hex(zip)).withLocation("arn:aws:s3:::bucketName/A/buildOutput"));
+        S3Downloader s3Downloader = s3DownloaderWithMockTransferManager();
+        s3Downloader.setExtractArtifacts(true);
+        s3Downloader.downloadBuildArtifacts(listener, build, testWorkSpace.getRemote());
+
+        verify(transferManager, never()).download(any(String.class), any(String.class), any(File.class));
+        verify(s3Client).getObject("bucketName", "A/buildOutput");
+        assertEquals("contents of a", FileUtils.readFileToString(new File(tmpWorkspaceFile, "dir/a.txt")));
+        assertEquals("contents of b", FileUtils.readFileToString(new File(tmpWorkspaceFile, "b.txt")));
+        assertFalse(new File(tmpWorkspaceFile, "A/buildOutput").exists());
+        assertEquals(2, tmpWorkspaceFile.list().length);
+        assertTrue(log.toString().contains("Extracted 2 files"));
+    }
+
+    @Test
+    public void testExtractZippedArtifactChecksumMismatch() throws Exception {
+        mockGetObject(zip("a.txt", "contents of a"));
+        build = new Build().withArtifacts(zippedBuildArtifacts);
+        S3Downloader s3Downloader = s3DownloaderWithMockTransferManager();
+        s3Downloader.setExtractArtifacts(true);
+        s3Downloader.downloadBuildArtifacts(listener, build, testWorkSpace.getRemote());
+
+        assertFalse(new File(tmpWorkspaceFile, "a.txt").exists());
+        assertEquals(0, tmpWorkspaceFile.list().length);
+        assertTrue(log.toString().contains(ZipArtifactExtractor.sha256MismatchError));
+    }
+
+    @Test
+    public void testExtractRejectsEntriesOutsideDestination() throws Exception {
+        byte[] zip = zip("../escaped.txt", "contents");
+        mockGetObject(zip);
+        build = new Build().withArtifacts(new BuildArtifacts().withSha256sum(DigestUtils.sha256Hex(zip)).withLocation("arn:aws:s3:::bucketName/A/buildOutput"));
+        S3Downloader s3Downloader = s3DownloaderWithMockTransferManager();
+        s3Downloader.setExtractArtifacts(true);
+        s3Downloader.downloadBuildArtifacts(listener, build, testWorkSpace.getRemote());
+
+        assertFalse(new File(tmpWorkspaceFile.getParentFile(), "escaped.txt").exists());
+        assertTrue(log.toString().contains(ZipArtifactExtractor.invalidEntryError));
+    }
+
+    private void mockGetObject(byte[] contents) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(contents));
+        object.getObjectMetadata().setContentLength(contents.length);
+        when(s3Client.getObject(any(String.class), any(String.class))).thenReturn(object);
+    }
+
+    // @param entries: the name and contents of each file, in turn.
+    private static byte[] zip(String... entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes("UTF-8"));
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class S3UploadCallableTest {
+
+    private static final long partSize = S3UploadCallable.MIN_PART_SIZE;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private AmazonS3 s3Client = mock(AmazonS3.class);
+
+    private Answer<UploadPartResult> partETag = new Answer<UploadPartResult>() {
+        public UploadPartResult answer(InvocationOnMock invocation) {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(new InitiateMultipartUploadResult());
+        CompleteMultipartUploadResult complete = new CompleteMultipartUploadResult();
+        complete.setVersionId("multipart-version");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(complete);
+        PutObjectResult put = new PutObjectResult();
+        put.setVersionId("put-version");
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(put);
+    }
+
+    private File newFile(long length) throws IOException {
+        File f = tempFolder.newFile();
+        try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length);
+        }
+        return f;
+    }
+
+    private S3UploadCallable newCallable() {
+        return new S3UploadCallable(null, "bucket", "key", "md5", true, partSize, 2);
+    }
+
+    @Test
+    public void testSmallFileIsPut() throws Exception {
+        File f = tempFolder.newFile();
+        FileUtils.write(f, "source");
+
+        assertEquals("put-version", newCallable().upload(s3Client, f));
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture());
+        assertEquals("md5", request.getValue().getMetadata().getContentMD5());
+        assertEquals(6L, request.getValue().getMetadata().getContentLength());
+        verify(s3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testLargeFileIsUploadedInParts() throws Exception {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).then(partETag);
+        File f = newFile(2 * partSize + 1);
+
+        assertEquals("multipart-version", newCallable().upload(s3Client, f));
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client, times(3)).uploadPart(parts.capture());
+        long uploaded = 0;
+        for(UploadPartRequest part: parts.getAllValues()) {
+            assertNotNull(part.getMd5Digest());
+            uploaded += part.getPartSize();
+        }
+        assertEquals(f.length(), uploaded);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(complete.capture());
+        List<PartETag> etags = complete.getValue().getPartETags();
+        assertEquals(3, etags.size());
+        for(int i = 0; i < etags.size(); i++) {
+            assertEquals(i + 1, etags.get(i).getPartNumber());
+        }
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenThrow(new RuntimeException("connection reset"));
+        File f = newFile(partSize);
+
+        try {
+            newCallable().upload(s3Client, f);
+            fail("Expected exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("connection reset"));
+        }
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testFailedCompletionAbortsUpload() throws Exception {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).then(partETag);
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenThrow(new AmazonServiceException("InternalError"));
+        File f = newFile(partSize);
+
+        try {
+            newCallable().upload(s3Client, f);
+            fail("Expected exception");
+        } catch (AmazonServiceException e) {
+            assertTrue(e.getMessage().startsWith("InternalError"));
+        }
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+}
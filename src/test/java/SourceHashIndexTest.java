@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SourceHashIndexTest {
+
+    private static final long OLD_MTIME = 1000000000000L;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File indexFile;
+    private File source;
+
+    @Before
+    public void setUp() throws Exception {
+        indexFile = new File(tempFolder.getRoot(), "ws@tmp/" + SourceHashIndex.FILE_NAME);
+        source = tempFolder.newFile("source");
+        write(source, "contents", OLD_MTIME);
+    }
+
+    private void write(File f, String contents, long mtime) throws Exception {
+        FileUtils.write(f, contents);
+        assertTrue(f.setLastModified(mtime));
+    }
+
+    private String hashAndSave(File f) throws Exception {
+        SourceHashIndex index = SourceHashIndex.load(indexFile);
+        String hash = index.hash(f);
+        index.save();
+        return hash;
+    }
+
+    @Test
+    public void testMissingIndexHashesFile() throws Exception {
+        assertEquals(DigestUtils.sha256Hex("contents"), hashAndSave(source));
+        assertTrue(indexFile.isFile());
+    }
+
+    @Test
+    public void testUnchangedFileIsNotReadAgain() throws Exception {
+        hashAndSave(source);
+        // Same size and modification time: the index can't tell the difference, so the remembered hash is used.
+        write(source, "CONTENTS", OLD_MTIME);
+
+        assertEquals(DigestUtils.sha256Hex("contents"), hashAndSave(source));
+    }
+
+    @Test
+    public void testModifiedFileIsReadAgain() throws Exception {
+        hashAndSave(source);
+        write(source, "CONTENTS", OLD_MTIME + 1000);
+
+        assertEquals(DigestUtils.sha256Hex("CONTENTS"), hashAndSave(source));
+    }
+
+    @Test
+    public void testResizedFileIsReadAgain() throws Exception {
+        hashAndSave(source);
+        write(source, "new contents", OLD_MTIME);
+
+        assertEquals(DigestUtils.sha256Hex("new contents"), hashAndSave(source));
+    }
+
+    @Test
+    public void testRecentlyModifiedFileIsNotRemembered() throws Exception {
+        write(source, "contents", System.currentTimeMillis());
+        hashAndSave(source);
+        write(source, "CONTENTS", source.lastModified());
+
+        assertEquals(DigestUtils.sha256Hex("CONTENTS"), hashAndSave(source));
+    }
+
+    @Test
+    public void testFilesNotSeenAreDropped() throws Exception {
+        File other = tempFolder.newFile("other");
+        write(other, "other", OLD_MTIME);
+        hashAndSave(source);
+        hashAndSave(other);
+        write(source, "CONTENTS", OLD_MTIME);
+
+        assertEquals(DigestUtils.sha256Hex("CONTENTS"), hashAndSave(source));
+    }
+
+    @Test
+    public void testCorruptIndexIsIgnored() throws Exception {
+        FileUtils.write(indexFile, "not an index\n");
+
+        assertEquals(DigestUtils.sha256Hex("contents"), hashAndSave(source));
+    }
+
+    @Test
+    public void testEntryWithInvalidHashIsIgnored() throws Exception {
+        FileUtils.write(indexFile, "8\t" + OLD_MTIME + "\tnot a hash\t" + source.getAbsolutePath() + "\n");
+
+        assertEquals(DigestUtils.sha256Hex("contents"), hashAndSave(source));
+    }
+
+    @Test
+    public void testSaveLeavesNoTemporaryFile() throws Exception {
+        hashAndSave(source);
+        hashAndSave(source);
+
+        assertArrayEquals(new String[] {SourceHashIndex.FILE_NAME}, indexFile.getParentFile().list());
+    }
+}
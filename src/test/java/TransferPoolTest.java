@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License.
+ *     A copy of the License is located at
+ *
+ *         http://aws.amazon.com/apache2.0/
+ *
+ *     or in the "license" file accompanying this file.
+ *     This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and limitations under the License.
+ *
+ *  Portions copyright Copyright 2002-2016 JUnit. All Rights Reserved. Copyright (c) 2007 Mockito contributors.
+ *  Please see LICENSE.txt for applicable license terms and NOTICE.txt for applicable notices.
+ */
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferPoolTest {
+
+    @After
+    public void tearDown() {
+        TransferPool.shutdownAll();
+    }
+
+    @Test
+    public void testPoolIsSharedPerClientKey() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+
+        assertSame(pool, TransferPool.getInstance("key", 4));
+        assertNotSame(pool, TransferPool.getInstance("other key", 4));
+    }
+
+    @Test
+    public void testPoolIsResized() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+
+        assertSame(pool, TransferPool.getInstance("key", 8));
+        assertEquals(8, pool.getExecutor().getMaximumPoolSize());
+        assertEquals(8, pool.getExecutor().getCorePoolSize());
+
+        TransferPool.getInstance("key", 2);
+        assertEquals(2, pool.getExecutor().getMaximumPoolSize());
+        assertEquals(2, pool.getExecutor().getCorePoolSize());
+    }
+
+    @Test
+    public void testIdleThreadsExit() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+
+        assertTrue(pool.getExecutor().allowsCoreThreadTimeOut());
+    }
+
+    @Test
+    public void testTransferCounts() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+        pool.transferStarted();
+        pool.transferStarted();
+        pool.transferFinished();
+
+        assertEquals(1, pool.getActiveTransfers());
+        assertEquals(1, pool.getCompletedTransfers());
+        assertTrue(pool.toString().contains("1 active transfers"));
+    }
+
+    @Test
+    public void testIdlePoolIsDropped() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+        pool.lastUsed -= 2 * TransferPool.IDLE_TIMEOUT;
+
+        TransferPool.getInstance("other key", 4);
+
+        TransferPool replacement = TransferPool.getInstance("key", 4);
+        assertNotSame(pool, replacement);
+        // A downloader may still hold the dropped pool.
+        assertFalse(pool.getExecutor().isShutdown());
+        pool.getExecutor().shutdownNow();
+    }
+
+    @Test
+    public void testPoolWithActiveTransfersIsKept() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+        pool.transferStarted();
+        pool.lastUsed -= 2 * TransferPool.IDLE_TIMEOUT;
+
+        TransferPool.getInstance("other key", 4);
+
+        assertSame(pool, TransferPool.getInstance("key", 4));
+    }
+
+    @Test
+    public void testShutdownAll() {
+        TransferPool pool = TransferPool.getInstance("key", 4);
+        TransferPool.shutdownAll();
+
+        assertTrue(pool.getExecutor().isShutdown());
+        assertNotSame(pool, TransferPool.getInstance("key", 4));
+    }
+}